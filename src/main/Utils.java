@@ -4,6 +4,8 @@
 
 package main;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Utils {
     
@@ -26,6 +28,17 @@ public class Utils {
         return out;
     }
 
+    // Executor starting one virtual thread per task (Java 21+), looked up reflectively
+    // so the project still builds on Java 11. Falls back to a cached platform thread pool.
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads require Java 21+, using a cached thread pool instead.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     public static void main(String args[]) {
         byte[] b = intToByteArray(1234);
         for (byte B : b) {
@@ -0,0 +1,127 @@
+/*
+    Bitfield benchmark
+
+    * Compares the boxed Iterable<Boolean> walk with the primitive BitfieldObj API
+      on the loops the peer runs: counting stored pieces, visiting every set bit
+      and finding the pieces a remote peer has that we lack
+    * Reports ns per full pass and bytes allocated per pass
+    * Run: java -cp bin main.peer.BitfieldBench [pieces] [passes]
+
+*/
+
+package main.peer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.function.IntSupplier;
+
+public class BitfieldBench {
+
+    private static int sink; // Keeps results alive
+
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void measure(String name, int passes, IntSupplier pass) {
+        for (int i = 0; i < passes; i++) {
+            sink += pass.getAsInt(); // Warm up
+        }
+        long bytes = allocated();
+        long start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            sink += pass.getAsInt();
+        }
+        long ns = (System.nanoTime() - start) / passes;
+        bytes = (allocated() - bytes) / passes;
+        System.out.printf("%-28s %10d ns/pass %10d B/pass\n", name, ns, bytes);
+    }
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        Random rnd = new Random(1);
+        BitfieldObj local = new BitfieldObj(n);
+        BitfieldObj remote = new BitfieldObj(n);
+        for (int i = 0; i < n; i++) {
+            if (rnd.nextInt(2) == 0) {
+                local.setBit(i);
+            }
+            if (rnd.nextInt(10) != 0) {
+                remote.setBit(i);
+            }
+        }
+        int[] out = new int[n];
+
+        System.out.printf("pieces=%d local=%d remote=%d\n", n, local.numberOfFinishedPieces(), remote.numberOfFinishedPieces());
+
+        measure("count: iterator", passes, () -> {
+            int count = 0;
+            for (boolean b : local) {
+                if (b) {
+                    count++;
+                }
+            }
+            return count;
+        });
+        measure("count: cardinality", passes, local::numberOfFinishedPieces);
+
+        measure("set bits: iterator", passes, () -> {
+            int sum = 0;
+            int i = 0;
+            for (boolean b : local) {
+                if (b) {
+                    sum += i;
+                }
+                i++;
+            }
+            return sum;
+        });
+        measure("set bits: nextSetBit", passes, () -> {
+            int sum = 0;
+            for (int i = local.nextSetBit(0); i != -1; i = local.nextSetBit(i + 1)) {
+                sum += i;
+            }
+            return sum;
+        });
+        int[] acc = new int[1];
+        measure("set bits: forEachSetBit", passes, () -> {
+            acc[0] = 0;
+            local.forEachSetBit(i -> acc[0] += i);
+            return acc[0];
+        });
+
+        measure("wanted: iterators", passes, () -> {
+            int count = 0;
+            Iterator<Boolean> theirs = remote.iterator();
+            for (boolean mine : local) {
+                if (theirs.next() && !mine) {
+                    count++;
+                }
+            }
+            return count;
+        });
+        measure("wanted: checkBit loop", passes, () -> {
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if (remote.checkBit(i) && !local.checkBit(i)) {
+                    count++;
+                }
+            }
+            return count;
+        });
+        measure("wanted: nextWanted", passes, () -> {
+            int count = 0;
+            for (int i = local.nextWanted(remote, 0); i != -1; i = local.nextWanted(remote, i + 1)) {
+                count++;
+            }
+            return count;
+        });
+        measure("wanted: wanted(int[])", passes, () -> local.wanted(remote, out));
+        measure("hasPiece", passes, () -> remote.hasPiece(local) ? 1 : 0);
+
+        System.out.println(sink == 42 ? "" : "done");
+    }
+}
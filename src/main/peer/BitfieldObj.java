@@ -1,27 +1,31 @@
 package main.peer;
 
-import java.util.Arrays;
 import java.util.Iterator;
+import java.util.function.IntConsumer;
 
+// Bits are packed 64 per long, bit i is bit (i % 64) of words[i / 64].
+// On the wire (getData) the layout stays one bit per piece, most significant bit first.
+// Loops should use nextSetBit/nextClearBit/forEachSetBit/nextWanted, they allocate nothing,
+// the Iterable<Boolean> view boxes every bit.
+// Not thread-safe, ConcurrentBitfield is the variant shared between threads.
 public class BitfieldObj implements Iterable<Boolean> {
 
-    private byte[] data = null;
-    private int leftoverBits = 0;
-    
+    private long[] words;
+    private int size; // Number of bits/pieces
+    private int cardinality = 0; // Number of set bits
+
     public BitfieldObj(int size, boolean full) {
         // Size corresponds to the number of bits/pieces
         if (size <= 0) { throw new IllegalArgumentException("Bitfield needs to be larger than 0."); }
 
-        setData(new byte[(int) Math.ceil(((float) size)/8)]); // create an array of bytes that can support the number of bits 
-        leftoverBits = size % 8;;   
-        
+        this.size = size;
+        this.words = new long[(size + 63) >>> 6];
         if (full) {
-            Arrays.fill(data, (byte) 0xff);
-            byte temp = 0;
-            for (int i = 7; i > 7-leftoverBits; i--) {
-                temp+= (int) Math.pow(2,i);
+            for (int w = 0; w < words.length; w++) {
+                words[w] = -1L;
             }
-            data[data.length-1] = temp;
+            clearTail();
+            cardinality = size;
         }
     }
 
@@ -29,74 +33,183 @@ public class BitfieldObj implements Iterable<Boolean> {
         this(size, false);
     }
 
+    // Decode a BITFIELD payload
     public BitfieldObj(byte[] data_, int size) {
-        this.data = data_;
-        this.leftoverBits = size % 8;
+        this(size, false);
+        setData(data_);
+    }
+
+    // Wrap words already in the packed layout
+    protected BitfieldObj(long[] words_, int size) {
+        this.size = size;
+        this.words = words_;
+        for (long word : words) {
+            cardinality += Long.bitCount(word);
+        }
+    }
+
+    // Word w, every read goes through here so subclasses can keep the words elsewhere
+    protected long word(int w) {
+        return words[w];
     }
 
+    protected int wordCount() {
+        return words.length;
+    }
+
+    // Encode as a BITFIELD payload
     public byte[] getData() {
+        byte[] data = new byte[(size + 7) >>> 3];
+        for (int i = 0; i < data.length; i++) {
+            long word = word(i >>> 3);
+            int b = (int) (word >>> ((i & 7) << 3)) & 0xff;
+            data[i] = (byte) (Integer.reverse(b) >>> 24); // LSB-first to MSB-first
+        }
         return data;
     }
 
     public void setData(byte[] data) {
-        this.data = data;
+        for (int w = 0; w < words.length; w++) {
+            words[w] = 0;
+        }
+        for (int i = 0; i < data.length && (i >>> 3) < words.length; i++) {
+            long b = Integer.reverse(data[i] & 0xff) >>> 24; // MSB-first byte to LSB-first
+            words[i >>> 3] |= b << ((i & 7) << 3);
+        }
+        clearTail(); // Ignore spare bits set by the sender
+        cardinality = 0;
+        for (long word : words) {
+            cardinality += Long.bitCount(word);
+        }
     }
 
-    public int getLength() {
-        int len = data.length*8;
-        if (leftoverBits > 0) {
-            len -= 8-leftoverBits;
+    private void clearTail() {
+        int spare = (words.length << 6) - size;
+        if (spare > 0) {
+            words[words.length - 1] &= -1L >>> spare;
         }
-        return len;
+    }
+
+    public int getLength() {
+        return size;
     }
 
     public boolean checkBit(int index) {
         // index of 0 = 1st bit in bitfield
-
-        if (Math.ceil(((float) index) / 8) <= data.length && index >= 0) {
-            // index is within bitfield bounds
-            int i = index/8; // index of corresponding byte in data
-            int j = 8*(i+1)-index-1; // reverse position of wanted bit: second bit in byte is 2^6, j=6
-            int result = data[i] & (1 << j); // Bitwise AND to check bit is 0 or 1
-            result >>= j; // bit shift right to rightmost bit 
-
-            if (result == 1) { 
-                return true;
-            }
+        if (index < 0 || index >= size) {
+            return false; // May want to throw exception instead if out of bounds
         }
-        return false; // May want to throw exception instead if out of bounds
+        return (word(index >>> 6) & (1L << index)) != 0;
     }
 
     public boolean setBit(int index) {
-        if (Math.ceil(((float) index) / 8) <= data.length && index >= 0) {
-            // index is within bitfield bounds
-            int i = (int) index/8; // index of corresponding byte in data
-            int j = 8*(i+1)-index-1; // reverse position of wanted bit: second bit in byte is 2^6, j=6
-            data[i] |= 1 << j; // Bitwise OR and assign bit value
-            return true;
+        if (index < 0 || index >= size) {
+            return false;
         }
-        return false;
+        long mask = 1L << index;
+        int w = index >>> 6;
+        if ((words[w] & mask) == 0) {
+            words[w] |= mask;
+            cardinality++;
+        }
+        return true;
     }
 
     public boolean isComplete() {
-        // Check full bytes
-        for (Boolean b : this) {
-            if (!b) {
-                return false;
-            }
-        }
-        return true;
+        return numberOfFinishedPieces() == size;
     }
 
     // for testing
     public void printData() {
-        for (int j = 0; j < data.length; j++) {
-            System.out.format("%02X ", data[j]);
+        for (byte b : getData()) {
+            System.out.format("%02X ", b);
         }
         System.out.println();
     }
 
-    // Check if bitfield contains missing pieces
+    // Index of the first set bit at or after from, -1 if there is none
+    public int nextSetBit(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        if (from >= size) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long word = word(w) & (-1L << from);
+        while (word == 0) {
+            if (++w == wordCount()) {
+                return -1;
+            }
+            word = word(w);
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    // Index of the first clear bit at or after from, -1 if there is none
+    public int nextClearBit(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        if (from >= size) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long word = ~word(w) & (-1L << from);
+        while (word == 0) {
+            if (++w == wordCount()) {
+                return -1;
+            }
+            word = ~word(w);
+        }
+        int index = (w << 6) + Long.numberOfTrailingZeros(word);
+        return index < size ? index : -1;
+    }
+
+    public void forEachSetBit(IntConsumer action) {
+        for (int w = 0; w < wordCount(); w++) {
+            long word = word(w);
+            while (word != 0) {
+                action.accept((w << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1; // Clear lowest set bit
+            }
+        }
+    }
+
+    // First piece at or after from that theirs has and this bitfield lacks, -1 if there is none
+    public int nextWanted(BitfieldObj theirs, int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        if (from >= size) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long word = theirs.word(w) & ~word(w) & (-1L << from);
+        while (word == 0) {
+            if (++w == wordCount()) {
+                return -1;
+            }
+            word = theirs.word(w) & ~word(w);
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    // Fill out with the pieces theirs has and this bitfield lacks, in index order,
+    // returns how many were written (at most out.length)
+    public int wanted(BitfieldObj theirs, int[] out) {
+        int n = 0;
+        for (int w = 0; w < wordCount() && n < out.length; w++) {
+            long word = theirs.word(w) & ~word(w);
+            while (word != 0 && n < out.length) {
+                out[n++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return n;
+    }
+
+    // Check if this bitfield has a piece the given one is missing
     public boolean hasPiece(BitfieldObj bitfield) {
         // Compare bitfield lengths
         if (bitfield.getLength() != this.getLength()) {
@@ -104,13 +217,8 @@ public class BitfieldObj implements Iterable<Boolean> {
             return false;
         }
 
-        Iterator<Boolean> it1 = bitfield.iterator();
-        Iterator<Boolean> it2 = this.iterator();
-        // Iterate through both bitfields and check if this bf has a missing piece
-        int ind = 0;
-        while (it1.hasNext() && ind < data.length*8 - leftoverBits) {
-            ind++;
-            if (!it1.next() && it2.next()) {
+        for (int w = 0; w < wordCount(); w++) {
+            if ((word(w) & ~bitfield.word(w)) != 0) {
                 return true;
             }
         }
@@ -118,37 +226,24 @@ public class BitfieldObj implements Iterable<Boolean> {
     }
 
     public int numberOfFinishedPieces() {
-        int count = 0;
-        for (boolean b : this) {
-            if (b) {
-                count++;
-            }
-        }
-        return count;
+        return cardinality;
     }
 
     public int numberOfMissingPieces() {
-        return getLength() - numberOfFinishedPieces();
+        return size - numberOfFinishedPieces();
     }
 
     // Iterate through bitfield
     public Iterator<Boolean> iterator() {
         return new Iterator<Boolean>() {
             private int index = 0;
-            private int bitIndex = 0;
 
             public boolean hasNext() {
-                return index < getLength();
+                return index < size;
             }
 
             public Boolean next() {
-                boolean result = checkBit(index);
-                index++;
-                bitIndex++;
-                if (bitIndex == 8) {
-                    bitIndex = 0;
-                }
-                return result;
+                return checkBit(index++);
             }
         };
     }
@@ -0,0 +1,254 @@
+/*
+    Block Assembler
+
+    * Pieces fetched as blocks of BlockSize bytes (default 16 KB) with Block Request and
+      Block messages, from peers that advertised the Blocks extension (see Handshake)
+    * A piece being assembled is claimed for RequestTracker.BLOCKS, several peers can
+      request its blocks at the same time, each block from one peer at a time
+    * Blocks are identified by a single int, piece index * blocks per piece + block number,
+      which is also the key of PeerInfo.blocksInFlight
+    * Received blocks are copied into a piece buffer (PieceBuffers) at their offset, the
+      completed piece goes to the DiskWriter like a PIECE message would
+    * Blocks that arrive late or twice are dropped
+    * In endgame a block already requested from one peer can be requested from others too
+      (duplicateBlock), the first copy wins and the rest are cancelled with Block Cancel
+
+*/
+
+package main.peer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import main.peer.message.Block;
+import main.peer.message.Message;
+import main.peer.peerProcess.PeerInfo;
+
+public class BlockAssembler {
+
+    private static final int FREE = Integer.MIN_VALUE; // Peer IDs are never negative
+
+    // A piece being assembled
+    private static class Partial {
+        private ReentrantLock lock = new ReentrantLock();
+        private ByteBuffer buffer; // Null once completed or discarded
+        private int[] owner; // Peer each block is requested from, FREE if none
+        private int[] duplicates; // Endgame requests of each block beyond its owner's
+        private BitSet received;
+        private int missing;
+    }
+
+    private TorrentFile torrentFile;
+    private PieceBuffers buffers;
+    private int blockSize;
+    private int blocksPerPiece;
+    private ConcurrentHashMap<Integer, Partial> partials = new ConcurrentHashMap<Integer, Partial>();
+
+    public BlockAssembler(TorrentFile torrentFile_, PieceBuffers buffers_, int blockSize_) {
+        this.torrentFile = torrentFile_;
+        this.buffers = buffers_;
+        this.blockSize = blockSize_;
+        this.blocksPerPiece = (torrentFile.getPieceSize() + blockSize - 1) / blockSize;
+    }
+
+    public int getBlocksPerPiece() {
+        return blocksPerPiece;
+    }
+
+    public int pieceOf(int block) {
+        return block / blocksPerPiece;
+    }
+
+    public int beginOf(int block) {
+        return (block % blocksPerPiece) * blockSize;
+    }
+
+    public int lengthOf(int block) {
+        return Math.min(blockSize, torrentFile.getPieceLength(pieceOf(block)) - beginOf(block));
+    }
+
+    // Block starting at begin, -1 if it is not a block boundary of the piece
+    public int blockOf(int index, int begin) {
+        if (index < 0 || index >= torrentFile.getPieceCount() || begin < 0 || begin % blockSize != 0
+                || begin >= torrentFile.getPieceLength(index)) {
+            return -1;
+        }
+        return index * blocksPerPiece + begin / blockSize;
+    }
+
+    // Claim a free block of a piece in progress that the peer has, -1 if there is none
+    public int claimBlock(PeerInfo peer) {
+        for (Integer index : partials.keySet()) {
+            Partial partial = partials.get(index);
+            if (partial == null || !peer.bf.checkBit(index)) {
+                continue;
+            }
+            int block = claimIn(index, partial, peer.ID);
+            if (block >= 0) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    // Endgame: a block of a piece in progress that the peer has, already requested from
+    // another peer but not from this one, fewest duplicates first, -1 if there is none.
+    // maxDuplicates bounds the peers asked for one block, 0 for no limit
+    public int duplicateBlock(PeerInfo peer, int maxDuplicates) {
+        int best = -1;
+        int bestCount = maxDuplicates > 0 ? maxDuplicates - 1 : Integer.MAX_VALUE;
+        Partial bestPartial = null;
+        for (Integer index : partials.keySet()) {
+            Partial partial = partials.get(index);
+            if (partial == null || !peer.bf.checkBit(index)) {
+                continue;
+            }
+            partial.lock.lock();
+            try {
+                if (partial.buffer == null) {
+                    continue;
+                }
+                for (int b = partial.received.nextClearBit(0); b < partial.owner.length; b = partial.received.nextClearBit(b + 1)) {
+                    int block = index * blocksPerPiece + b;
+                    if (partial.owner[b] != FREE && partial.owner[b] != peer.ID && partial.duplicates[b] < bestCount
+                            && !peer.blocksInFlight.containsKey(block)) {
+                        best = block;
+                        bestCount = partial.duplicates[b];
+                        bestPartial = partial;
+                    }
+                }
+            } finally {
+                partial.lock.unlock();
+            }
+        }
+        if (best < 0) {
+            return -1;
+        }
+        bestPartial.lock.lock();
+        try {
+            bestPartial.duplicates[best % blocksPerPiece]++;
+        } finally {
+            bestPartial.lock.unlock();
+        }
+        return best;
+    }
+
+    // Pieces being assembled, each counts as one request in flight
+    public int getAssemblingCount() {
+        return partials.size();
+    }
+
+    // Start assembling a piece the caller claimed for RequestTracker.BLOCKS and claim
+    // its first block for the peer, -1 if it has no free block
+    public int open(int index, int peerID) {
+        Partial partial = partials.computeIfAbsent(index, i -> {
+            Partial p = new Partial();
+            int length = torrentFile.getPieceLength(i);
+            int count = (length + blockSize - 1) / blockSize;
+            p.buffer = buffers.acquire(length);
+            p.owner = new int[count];
+            p.duplicates = new int[count];
+            Arrays.fill(p.owner, FREE);
+            p.received = new BitSet(count);
+            p.missing = count;
+            return p;
+        });
+        return claimIn(index, partial, peerID);
+    }
+
+    private int claimIn(int index, Partial partial, int peerID) {
+        partial.lock.lock();
+        try {
+            if (partial.buffer == null) {
+                return -1;
+            }
+            for (int b = partial.received.nextClearBit(0); b < partial.owner.length; b = partial.received.nextClearBit(b + 1)) {
+                if (partial.owner[b] == FREE) {
+                    partial.owner[b] = peerID;
+                    return index * blocksPerPiece + b;
+                }
+            }
+            return -1;
+        } finally {
+            partial.lock.unlock();
+        }
+    }
+
+    // Free a block for another peer if this peer still holds it (timeout, choke)
+    public void release(int block, int peerID) {
+        Partial partial = partials.get(pieceOf(block));
+        if (partial == null) {
+            return;
+        }
+        partial.lock.lock();
+        try {
+            int b = block % blocksPerPiece;
+            if (partial.buffer != null && partial.owner[b] == peerID) {
+                partial.owner[b] = FREE;
+            }
+        } finally {
+            partial.lock.unlock();
+        }
+    }
+
+    // Copy a received Block message into its piece, returns the piece once every
+    // block is in (its buffer then belongs to the caller), otherwise null
+    public TorrentFile.PieceObj receive(Message msg) {
+        int index = Block.index(msg);
+        int block = blockOf(index, Block.begin(msg));
+        if (block < 0 || Block.contentLength(msg) != lengthOf(block)) {
+            return null;
+        }
+        Partial partial = partials.get(index);
+        if (partial == null) {
+            return null; // Already complete or never requested as blocks
+        }
+        int b = block % blocksPerPiece;
+        partial.lock.lock();
+        try {
+            if (partial.buffer == null || partial.received.get(b)) {
+                return null;
+            }
+            ByteBuffer target = partial.buffer.duplicate();
+            target.position(beginOf(block));
+            msg.copyPayload(8, target, lengthOf(block));
+            partial.received.set(b);
+            partial.owner[b] = FREE;
+            if (--partial.missing > 0) {
+                return null;
+            }
+            ByteBuffer content = partial.buffer;
+            partial.buffer = null;
+            partials.remove(index, partial);
+            content.position(0);
+            content.limit(torrentFile.getPieceLength(index));
+            return torrentFile.new PieceObj(index, content);
+        } finally {
+            partial.lock.unlock();
+        }
+    }
+
+    // Drop a piece in progress, it arrived whole from another peer
+    public void discard(int index) {
+        Partial partial = partials.remove(index);
+        if (partial == null) {
+            return;
+        }
+        partial.lock.lock();
+        try {
+            if (partial.buffer != null) {
+                buffers.release(partial.buffer);
+                partial.buffer = null;
+            }
+        } finally {
+            partial.lock.unlock();
+        }
+    }
+
+    public boolean isAssembling(int index) {
+        return partials.containsKey(index);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+    Buffer Pool
+
+    * Reusable ByteBuffers in power-of-two size classes, from 64 bytes up to the
+      largest class asked for at construction
+    * acquire returns a cleared buffer of at least the requested size with its limit
+      set to that size, release hands it back for the next acquire
+    * Each class keeps at most perClass idle buffers, extra ones are left to the GC,
+      requests above the largest class get a one-off buffer
+    * Used for received message payloads, a connection only holds one at a time
+
+*/
+
+package main.peer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 6; // 64 bytes
+
+    private ArrayBlockingQueue<ByteBuffer>[] classes;
+    private int maxShift;
+    private boolean direct;
+
+    // Metrics
+    private AtomicLong allocated = new AtomicLong();
+    private AtomicLong reused = new AtomicLong();
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public BufferPool(int maxSize, int perClass, boolean direct_) {
+        this.maxShift = Math.max(MIN_SHIFT, shift(maxSize));
+        this.direct = direct_;
+        this.classes = new ArrayBlockingQueue[maxShift + 1];
+        for (int s = MIN_SHIFT; s <= maxShift; s++) {
+            classes[s] = new ArrayBlockingQueue<ByteBuffer>(perClass);
+        }
+    }
+
+    // Smallest power of two holding size
+    private static int shift(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        allocated.incrementAndGet();
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    public ByteBuffer acquire(int size) {
+        int s = Math.max(MIN_SHIFT, shift(size));
+        if (s > maxShift) {
+            return allocate(size);
+        }
+        ByteBuffer buf = classes[s].poll();
+        if (buf == null) {
+            buf = allocate(1 << s);
+        } else {
+            reused.incrementAndGet();
+        }
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        int capacity = buf.capacity();
+        if (Integer.bitCount(capacity) != 1) {
+            return; // One-off buffer
+        }
+        int s = Integer.numberOfTrailingZeros(capacity);
+        if (s >= MIN_SHIFT && s <= maxShift) {
+            classes[s].offer(buf);
+        }
+    }
+
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    public long getReused() {
+        return reused.get();
+    }
+}
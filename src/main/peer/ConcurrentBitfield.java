@@ -0,0 +1,69 @@
+package main.peer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bitfield shared between threads: the local piece set, set by the DiskWriter and read by
+// every handler, picker and the choking logic. Words live in an AtomicLongArray, setBit is
+// a CAS on one word and the completion count is an atomic, so nothing takes a lock.
+// Bits are only ever set, so any read sees every piece completed before it started.
+public class ConcurrentBitfield extends BitfieldObj {
+
+    private AtomicLongArray bits;
+    private AtomicInteger count;
+
+    public ConcurrentBitfield(int size, boolean full) {
+        super(size, full);
+        this.bits = new AtomicLongArray(wordCount());
+        for (int w = 0; w < wordCount(); w++) {
+            bits.set(w, super.word(w));
+        }
+        this.count = new AtomicInteger(super.numberOfFinishedPieces());
+    }
+
+    public ConcurrentBitfield(int size) {
+        this(size, false);
+    }
+
+    protected long word(int w) {
+        return bits.get(w);
+    }
+
+    public boolean setBit(int index) {
+        if (index < 0 || index >= getLength()) {
+            return false;
+        }
+        long mask = 1L << index;
+        long old = bits.getAndAccumulate(index >>> 6, mask, (a, b) -> a | b);
+        if ((old & mask) == 0) {
+            count.incrementAndGet();
+        }
+        return true;
+    }
+
+    public int numberOfFinishedPieces() {
+        return count.get();
+    }
+
+    // Replaces the whole content, only before the bitfield is shared
+    public void setData(byte[] data) {
+        BitfieldObj decoded = new BitfieldObj(data, getLength());
+        for (int w = 0; w < wordCount(); w++) {
+            bits.set(w, decoded.word(w));
+        }
+        count.set(decoded.numberOfFinishedPieces());
+    }
+
+    // Plain copy with each word read once, used to encode the BITFIELD message
+    public BitfieldObj snapshot() {
+        long[] words = new long[wordCount()];
+        for (int w = 0; w < words.length; w++) {
+            words[w] = bits.get(w);
+        }
+        return new BitfieldObj(words, getLength());
+    }
+
+    public byte[] getData() {
+        return snapshot().getData();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+    Disk Writer
+
+    * Write-behind queue for received pieces, so disk latency never stalls a socket reader
+    * Served by DiskWriterThreads worker tasks (default 2)
+    * peerProcess is told once a piece is stored, only then does it set the bitfield bit
+      and announce the piece with Have
+    * At most DiskQueueCapacity pieces wait or are being written, while the queue is full
+      no new requests are sent, so a slow disk slows the download instead of filling memory
+    * Duplicate copies of a piece that is already queued are dropped
+    * Pieces that do not match their hash are dropped and requested again
+    * Pieces are written from the pooled buffer they were received into, which is
+      released here once the piece is stored or dropped
+    * Pieces the nio transport received straight into storage (ZeroCopyReceive) are
+      claimed before they arrive and only verified here
+    * Each worker takes the queued pieces as a batch, stores them, syncs storage once and
+      only then marks them in the bitfield, so a bit is never set for data still in memory
+
+*/
+
+package main.peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.peer.TorrentFile.PieceObj;
+import main.peer.peerProcess.PeerInfo;
+
+public class DiskWriter {
+
+    private static class WriteItem {
+        private int index;
+        private PieceObj piece; // Null when the piece is already in storage
+        private PeerInfo from;
+
+        private WriteItem(int index, PieceObj piece, PeerInfo from) {
+            this.index = index;
+            this.piece = piece;
+            this.from = from;
+        }
+    }
+
+    private static final int MAX_BATCH = 16; // Pieces stored per storage sync
+
+    private peerProcess process;
+    private TorrentFile torrentFile;
+    private PieceBuffers buffers;
+    private int capacity;
+
+    private LinkedBlockingQueue<WriteItem> queue = new LinkedBlockingQueue<WriteItem>();
+    private ConcurrentHashMap<Integer, Boolean> pending = new ConcurrentHashMap<Integer, Boolean>(); // Queued or being written
+    private AtomicInteger maxDepth = new AtomicInteger();
+
+    public DiskWriter(peerProcess process_, TorrentFile torrentFile_, PieceBuffers buffers_, int capacity_) {
+        this.process = process_;
+        this.torrentFile = torrentFile_;
+        this.buffers = buffers_;
+        this.capacity = capacity_;
+    }
+
+    // Start the worker tasks
+    public void start(int threads) {
+        for (int i = 0; i < threads; i++) {
+            process.execute(this::run);
+        }
+    }
+
+    // Queue a received piece, false if a copy is already queued (its buffer is released)
+    public boolean submit(PieceObj piece, PeerInfo from) {
+        if (pending.putIfAbsent(piece.getIndex(), true) != null) {
+            release(piece);
+            return false;
+        }
+        queue.add(new WriteItem(piece.getIndex(), piece, from));
+        maxDepth.accumulateAndGet(pending.size(), Math::max);
+        return true;
+    }
+
+    // Reserve a piece that is about to be received straight into storage,
+    // false if a copy is already queued or arriving
+    public boolean claim(int index) {
+        if (pending.putIfAbsent(index, true) != null) {
+            return false;
+        }
+        maxDepth.accumulateAndGet(pending.size(), Math::max);
+        return true;
+    }
+
+    // The claimed piece did not arrive
+    public void abandon(int index) {
+        pending.remove(index);
+    }
+
+    // Queue a claimed piece that is now in storage for verification
+    public void submitStored(int index, PeerInfo from) {
+        queue.add(new WriteItem(index, null, from));
+    }
+
+    // Whether more pieces may be requested
+    public boolean hasCapacity() {
+        return pending.size() < capacity;
+    }
+
+    public boolean isPending(int index) {
+        return pending.containsKey(index);
+    }
+
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxDepth.get();
+    }
+
+    private boolean verify(WriteItem item) throws IOException {
+        if (item.piece != null) {
+            return torrentFile.verifyPiece(item.piece);
+        }
+        // Read back into a piece buffer, the content never passed through one
+        ByteBuffer scratch = buffers.acquire(torrentFile.getPieceLength(item.index));
+        try {
+            return torrentFile.verifyStored(item.index, scratch);
+        } finally {
+            buffers.release(scratch);
+        }
+    }
+
+    private void release(PieceObj piece) {
+        if (piece != null && piece.getPooledBuffer() != null) {
+            buffers.release(piece.getPooledBuffer());
+        }
+    }
+
+    private void run() {
+        ArrayList<WriteItem> batch = new ArrayList<WriteItem>();
+        ArrayList<WriteItem> stored = new ArrayList<WriteItem>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (WriteItem item : batch) {
+                    store(item, stored);
+                }
+                batch.clear();
+                if (stored.isEmpty()) {
+                    continue;
+                }
+                try {
+                    torrentFile.force();
+                } catch (IOException e) {
+                    for (WriteItem item : stored) {
+                        pending.remove(item.index);
+                        process.pieceWriteFailed(item.index, e);
+                    }
+                    stored.clear();
+                    continue;
+                }
+                for (WriteItem item : stored) {
+                    try {
+                        torrentFile.pieceStored(item.index);
+                        pending.remove(item.index);
+                        process.pieceWritten(item.index, item.from);
+                    } catch (IOException e) {
+                        pending.remove(item.index);
+                        process.pieceWriteFailed(item.index, e);
+                    }
+                }
+                stored.clear();
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+    }
+
+    // Verify and write one piece, adding it to stored once it is in storage
+    private void store(WriteItem item, ArrayList<WriteItem> stored) {
+        int index = item.index;
+        try {
+            if (!verify(item)) {
+                release(item.piece);
+                pending.remove(index);
+                process.pieceRejected(index, item.from);
+                return;
+            }
+            if (item.piece != null) {
+                torrentFile.writePiece(item.piece);
+            }
+            release(item.piece);
+            stored.add(item);
+        } catch (IOException e) {
+            release(item.piece);
+            pending.remove(index);
+            process.pieceWriteFailed(index, e);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+    Endgame Picker
+
+    * Uses the base picker while unrequested pieces remain
+    * Endgame starts when the missing pieces are no more than the requests in flight
+    * From then on it also requests them from other peers that have them, up to
+      maxDuplicates peers per piece (0 for no limit)
+    * The first copy to arrive wins, peerProcess.cancelDuplicates sends CANCEL for the rest
+    * A piece being assembled from blocks counts as one request, peers using blocks
+      duplicate blocks instead of pieces (BlockAssembler.duplicateBlock)
+*/
+
+package main.peer;
+
+import java.util.List;
+
+import main.peer.peerProcess.PeerInfo;
+
+public class EndgamePicker implements PiecePicker {
+
+    private PiecePicker base;
+    private BitfieldObj local;
+    private PieceAvailability availability;
+    private List<PeerInfo> peers;
+    private int maxDuplicates;
+    private BlockAssembler blocks; // Null when blocks are not used
+
+    public EndgamePicker(PiecePicker base_, BitfieldObj local_, PieceAvailability availability_, List<PeerInfo> peers_, int maxDuplicates_, BlockAssembler blocks_) {
+        this.blocks = blocks_;
+        this.base = base_;
+        this.local = local_;
+        this.availability = availability_;
+        this.peers = peers_;
+        this.maxDuplicates = maxDuplicates_;
+    }
+
+    public int pick(PeerInfo peer) {
+        int piece = base.pick(peer);
+        if (piece != -1 || !isEndgame()) {
+            return piece;
+        }
+
+        // Nothing left that is not already in flight, duplicate the least requested one
+        int best = -1;
+        int bestCount = maxDuplicates > 0 ? maxDuplicates : Integer.MAX_VALUE;
+        for (int i : availability.missingPieces()) {
+            if (!peer.bf.checkBit(i) || local.checkBit(i) || peer.inFlight.containsKey(i)) {
+                continue;
+            }
+            int count = inFlightCount(i);
+            if (count < bestCount) {
+                best = i;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    public boolean isEndgame() {
+        int missing = availability.missingCount();
+        if (missing == 0) {
+            return false;
+        }
+        int inFlight = blocks != null ? blocks.getAssemblingCount() : 0;
+        for (PeerInfo p : peers.toArray(new PeerInfo[0])) {
+            inFlight += p.inFlight.size();
+        }
+        return missing <= inFlight;
+    }
+
+    private int inFlightCount(int piece) {
+        int count = 0;
+        for (PeerInfo p : peers.toArray(new PeerInfo[0])) {
+            if (p.inFlight.containsKey(piece)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
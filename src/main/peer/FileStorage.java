@@ -0,0 +1,88 @@
+package main.peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Target file preallocated as <file>.part, pieces written in place with positional writes.
+// Completion is a rename, the open channel keeps serving pieces across it.
+public class FileStorage implements PieceStorage {
+
+    private TorrentFile torrentFile;
+    private File file;
+    private File part;
+    private FileChannel channel;
+
+    public FileStorage(TorrentFile torrentFile_, File file_, boolean complete_) throws IOException {
+        this.torrentFile = torrentFile_;
+        this.file = file_;
+        this.part = new File(file_.getPath() + ".part");
+        if (complete_) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } else {
+            channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() != torrentFile.getFileSize()) {
+                channel.truncate(0);
+                // Extend to full length, sparse where the file system allows it
+                channel.write(ByteBuffer.allocate(1), torrentFile.getFileSize() - 1);
+            }
+        }
+    }
+
+    private long position(int index) {
+        return (long) index * torrentFile.getPieceSize();
+    }
+
+    public void write(int index, ByteBuffer data) throws IOException {
+        ByteBuffer buf = data.duplicate();
+        long position = position(index);
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    public byte[] read(int index) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(torrentFile.getPieceLength(index));
+        read(index, buf);
+        return buf.array();
+    }
+
+    public void read(int index, ByteBuffer dst) throws IOException {
+        int limit = dst.limit();
+        dst.limit(dst.position() + torrentFile.getPieceLength(index)); // dst may be larger than the piece
+        try {
+            long position = position(index);
+            while (dst.hasRemaining()) {
+                int n = channel.read(dst, position);
+                if (n < 0) {
+                    throw new IOException("Piece " + index + " is past the end of " + file.getName());
+                }
+                position += n;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    public TorrentFile.PieceRegion region(int index) throws IOException {
+        return new TorrentFile.PieceRegion(index, channel, position(index), torrentFile.getPieceLength(index), false);
+    }
+
+    // The .part channel, writable until the file is complete
+    public TorrentFile.PieceRegion receiveRegion(int index) throws IOException {
+        return region(index);
+    }
+
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    public void complete() throws IOException {
+        channel.force(false);
+        Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
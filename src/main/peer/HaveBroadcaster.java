@@ -0,0 +1,83 @@
+/*
+    Have Broadcaster
+
+    * Announces downloaded pieces to the other peers
+    * Skips the peer the piece came from and peers whose bitfield already has it
+    * Collects announcements for HaveBatchMillis, then sends one Multi Have per peer,
+      or individual Have messages to peers that did not advertise the extension
+
+*/
+
+package main.peer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import main.peer.message.Have;
+import main.peer.message.MultiHave;
+import main.peer.peerProcess.PeerInfo;
+
+public class HaveBroadcaster implements Runnable {
+
+    private List<PeerInfo> peers;
+    private int batchMillis;
+
+    public HaveBroadcaster(List<PeerInfo> peers_, int batchMillis_) {
+        this.peers = peers_;
+        this.batchMillis = batchMillis_;
+    }
+
+    public boolean isBatching() {
+        return batchMillis > 0;
+    }
+
+    // Called once the piece is stored locally
+    public void pieceCompleted(int index, PeerInfo from) {
+        for (PeerInfo peer : new ArrayList<PeerInfo>(peers)) {
+            if (peer == from || peer.bf != null && peer.bf.checkBit(index)) {
+                continue;
+            }
+            if (!isBatching()) {
+                peer.sendMessage(new Have(index));
+                continue;
+            }
+            synchronized (peer.pendingHaves) {
+                peer.pendingHaves.add(index);
+            }
+        }
+    }
+
+    // Send everything collected so far
+    public void flush() {
+        for (PeerInfo peer : new ArrayList<PeerInfo>(peers)) {
+            ArrayList<Integer> pending;
+            synchronized (peer.pendingHaves) {
+                if (peer.pendingHaves.isEmpty()) {
+                    continue;
+                }
+                pending = new ArrayList<Integer>(peer.pendingHaves);
+                peer.pendingHaves.clear();
+            }
+
+            if (peer.multiHave && pending.size() > 1) {
+                peer.sendMessage(new MultiHave(pending));
+            } else {
+                for (int index : pending) {
+                    peer.sendMessage(new Have(index));
+                }
+            }
+        }
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(batchMillis);
+                flush();
+            } catch (InterruptedException e) {
+                flush();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+    Loopback benchmark for ExecutionMode
+
+    * Opens N loopback connections and serves each with a blocking reader task,
+      like Handler.run waiting on p.in.readInt()
+    * Reports connection setup time, live threads, heap and resident memory
+    * Run: java -cp bin main.peer.LoopbackBench <platform|virtual> [connections]
+
+*/
+
+package main.peer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+import main.Utils;
+import main.peer.message.Handshake;
+
+public class LoopbackBench {
+
+    private static long residentKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException e) {
+            // Not on Linux
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean virtual = args.length > 0 && args[0].equalsIgnoreCase("virtual");
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        ExecutorService executor = virtual ? Utils.newVirtualThreadExecutor() : null;
+
+        ServerSocket listener = new ServerSocket(0, n);
+        CountDownLatch ready = new CountDownLatch(n);
+        ArrayList<Socket> clients = new ArrayList<Socket>();
+        byte[] hs = new Handshake(1001).getMessage();
+
+        System.gc();
+        long rssBefore = residentKb();
+        long start = System.nanoTime();
+
+        Thread acceptor = new Thread(() -> {
+            try {
+                for (int i = 0; i < n; i++) {
+                    Socket s = listener.accept();
+                    Runnable handler = () -> {
+                        try {
+                            DataInputStream in = new DataInputStream(s.getInputStream());
+                            byte[] handshakeMsg = new byte[32];
+                            in.readFully(handshakeMsg);
+                            ready.countDown();
+                            in.readInt(); // Park until the connection closes
+                        } catch (IOException e) {
+                            // Closed at the end of the run
+                        }
+                    };
+                    if (executor != null) {
+                        executor.execute(handler);
+                    } else {
+                        new Thread(handler).start();
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        acceptor.start();
+
+        for (int i = 0; i < n; i++) {
+            Socket s = new Socket("localhost", listener.getLocalPort());
+            new DataOutputStream(s.getOutputStream()).write(hs);
+            clients.add(s);
+        }
+        ready.await();
+        long setupMs = (System.nanoTime() - start) / 1000000;
+
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        System.out.printf("mode=%s connections=%d setup=%dms threads=%d heap=%dKB rss=%dKB (+%dKB)\n",
+                virtual ? "virtual" : "platform", n, setupMs, Thread.activeCount(),
+                (rt.totalMemory() - rt.freeMemory()) / 1024, residentKb(), residentKb() - rssBefore);
+
+        for (Socket s : clients) {
+            s.close();
+        }
+        listener.close();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,133 @@
+package main.peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Target file mapped into memory in fixed windows, pieces are copied in and out of the
+// page cache without a system call. Windows are mapped on first use, so files above
+// the 2 GB limit of a single MappedByteBuffer work too. Same .part naming as FileStorage.
+public class MappedStorage implements PieceStorage {
+
+    private static final long WINDOW = 64L << 20; // 64 MB
+
+    private TorrentFile torrentFile;
+    private File file;
+    private File part;
+    private boolean readOnly;
+    private FileChannel channel; // Also used for zero-copy sending
+    private MappedByteBuffer[] windows;
+
+    public MappedStorage(TorrentFile torrentFile_, File file_, boolean complete_) throws IOException {
+        this.torrentFile = torrentFile_;
+        this.file = file_;
+        this.part = new File(file_.getPath() + ".part");
+        this.readOnly = complete_;
+        long size = torrentFile.getFileSize();
+        if (readOnly) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } else {
+            channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() != size) {
+                channel.truncate(0);
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+        }
+        this.windows = new MappedByteBuffer[(int) ((size + WINDOW - 1) / WINDOW)];
+    }
+
+    private MappedByteBuffer window(int w) throws IOException {
+        synchronized (windows) {
+            if (windows[w] == null) {
+                long start = w * WINDOW;
+                long length = Math.min(WINDOW, torrentFile.getFileSize() - start);
+                windows[w] = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, start, length);
+            }
+            return windows[w];
+        }
+    }
+
+    // Copy from the file at position into data, crossing window edges as needed
+    private void copy(long position, byte[] data) throws IOException {
+        int off = 0;
+        while (off < data.length) {
+            ByteBuffer b = window((int) (position / WINDOW)).duplicate(); // Own position per caller
+            b.position((int) (position % WINDOW));
+            int n = Math.min(data.length - off, b.remaining());
+            b.get(data, off, n);
+            off += n;
+            position += n;
+        }
+    }
+
+    private long position(int index) {
+        return (long) index * torrentFile.getPieceSize();
+    }
+
+    public void write(int index, ByteBuffer data) throws IOException {
+        ByteBuffer src = data.duplicate();
+        long position = position(index);
+        while (src.hasRemaining()) {
+            ByteBuffer b = window((int) (position / WINDOW)).duplicate();
+            b.position((int) (position % WINDOW));
+            int n = Math.min(src.remaining(), b.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            b.put(part);
+            src.position(src.position() + n);
+            position += n;
+        }
+    }
+
+    public byte[] read(int index) throws IOException {
+        byte[] data = new byte[torrentFile.getPieceLength(index)];
+        copy(position(index), data);
+        return data;
+    }
+
+    public void read(int index, ByteBuffer dst) throws IOException {
+        long position = position(index);
+        int left = torrentFile.getPieceLength(index);
+        while (left > 0) {
+            ByteBuffer b = window((int) (position / WINDOW)).duplicate();
+            b.position((int) (position % WINDOW));
+            int n = Math.min(left, b.remaining());
+            b.limit(b.position() + n);
+            dst.put(b);
+            left -= n;
+            position += n;
+        }
+    }
+
+    public TorrentFile.PieceRegion region(int index) throws IOException {
+        return new TorrentFile.PieceRegion(index, channel, position(index), torrentFile.getPieceLength(index), false);
+    }
+
+    // Written through the channel, the mapped windows see the same pages
+    public TorrentFile.PieceRegion receiveRegion(int index) throws IOException {
+        return region(index);
+    }
+
+    public void force() throws IOException {
+        synchronized (windows) {
+            for (MappedByteBuffer w : windows) {
+                if (w != null) {
+                    w.force();
+                }
+            }
+        }
+        if (!readOnly) {
+            channel.force(false); // Pieces received with transferFrom
+        }
+    }
+
+    public void complete() throws IOException {
+        force();
+        Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
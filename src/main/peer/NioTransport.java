@@ -0,0 +1,445 @@
+/*
+    Non-blocking Transport
+
+    * Single selector thread serving every peer connection (TransportMode nio)
+    * Accepts incoming connections on the listening port
+    * Frames the 32-byte handshake, then 4-byte length + 1-byte type messages
+    * Hands complete messages to the connection's Listener (same logic as Handler.run)
+    * Piece content can go straight from the socket into the file with FileChannel.transferFrom,
+      when the Listener provides a region for it after the piece index is read
+    * Queues outgoing bytes per connection and writes them when the socket is writable,
+      consecutive small messages go out in one gathering write
+    * The write queue is not bounded by OutboundQueueCapacity, senders run on the selector
+      thread and cannot wait. It holds what the peer requested, pieces are file regions
+      (ZeroCopySend) unless that is disabled
+
+*/
+
+package main.peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import main.peer.message.Message;
+
+public class NioTransport extends Thread {
+
+    // Callbacks for a single connection, all invoked on the selector thread
+    public interface Listener {
+        void onConnect(Connection connection);
+        boolean onHandshake(byte[] handshakeMsg);
+        void onMessage(Message msg);
+        // Content of a piece is next, return the file region to receive it into,
+        // or null to get it as a PIECE message
+        TorrentFile.PieceRegion onPieceStart(int index, int length);
+        // The region from onPieceStart is filled
+        void onPieceReceived(int index);
+        void onDisconnect(IOException e);
+        // A call above threw, the connection is already closed and the others go on
+        void onFailure(RuntimeException e);
+    }
+
+    public class Connection {
+        private SocketChannel channel;
+        private Listener listener;
+        private SelectionKey key;
+
+        private boolean shook = false;
+        private ByteBuffer header = ByteBuffer.allocate(32); // Handshake first, then 5-byte headers
+        private ByteBuffer payload = null; // Pooled, returned once the message is handled unless a piece's was taken
+        private byte type;
+        private Message received = new Message(); // Reused for every message
+
+        private ByteBuffer pieceIndex = ByteBuffer.allocate(4);
+        private int pieceLength = 0; // Content length while the index of a piece is read
+        private TorrentFile.PieceRegion sink; // Region the current piece streams into
+        private Source source = new Source();
+
+        private ArrayDeque<Object> writeQueue = new ArrayDeque<Object>(); // ByteBuffers and PieceRegions
+        private int maxDepth = 0;
+
+        private Connection(SocketChannel channel_, Listener listener_) {
+            this.channel = channel_;
+            this.listener = listener_;
+            this.source.channel = channel_;
+        }
+
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        // Queue bytes to be written, may be called from any thread
+        public void send(byte[] b) {
+            synchronized (writeQueue) {
+                writeQueue.add(ByteBuffer.wrap(b));
+                maxDepth = Math.max(maxDepth, writeQueue.size());
+            }
+            scheduleFlush();
+        }
+
+        // Queue a piece header followed by its content, transferred straight from the file
+        public void send(byte[] header, TorrentFile.PieceRegion region) {
+            synchronized (writeQueue) {
+                writeQueue.add(ByteBuffer.wrap(header));
+                writeQueue.add(region);
+                maxDepth = Math.max(maxDepth, writeQueue.size());
+            }
+            scheduleFlush();
+        }
+
+        // Withdraw a queued piece whose header has not started going out
+        public boolean cancelPiece(int index) {
+            synchronized (writeQueue) {
+                Object[] items = writeQueue.toArray();
+                for (int i = 1; i < items.length; i++) {
+                    if (!(items[i] instanceof TorrentFile.PieceRegion) || ((TorrentFile.PieceRegion) items[i]).getIndex() != index) {
+                        continue;
+                    }
+                    ByteBuffer header = (ByteBuffer) items[i-1];
+                    if (i == 1 && header.position() > 0) {
+                        return false; // Partly written
+                    }
+                    writeQueue.clear();
+                    for (int j = 0; j < items.length; j++) {
+                        if (j != i && j != i-1) {
+                            writeQueue.add(items[j]);
+                        }
+                    }
+                    ((TorrentFile.PieceRegion) items[i]).close();
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        // Withdraw a queued Block, matched by the index and offset in its header (followed
+        // by its region with ZeroCopySend, otherwise the whole frame)
+        public boolean cancelBlock(int index, int begin) {
+            synchronized (writeQueue) {
+                Object[] items = writeQueue.toArray();
+                for (int i = 0; i < items.length; i++) {
+                    if (!(items[i] instanceof ByteBuffer)) {
+                        continue;
+                    }
+                    ByteBuffer header = (ByteBuffer) items[i];
+                    if (header.limit() < 13 || header.get(4) != Message.BLOCK || header.getInt(5) != index || header.getInt(9) != begin) {
+                        continue;
+                    }
+                    if (header.position() > 0) {
+                        return false; // Partly written
+                    }
+                    boolean withRegion = i + 1 < items.length && items[i+1] instanceof TorrentFile.PieceRegion;
+                    writeQueue.clear();
+                    for (int j = 0; j < items.length; j++) {
+                        if (j != i && !(withRegion && j == i+1)) {
+                            writeQueue.add(items[j]);
+                        }
+                    }
+                    if (withRegion) {
+                        ((TorrentFile.PieceRegion) items[i+1]).close();
+                    }
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        public int getQueueDepth() {
+            synchronized (writeQueue) {
+                return writeQueue.size();
+            }
+        }
+
+        public int getMaxQueueDepth() {
+            synchronized (writeQueue) {
+                return maxDepth;
+            }
+        }
+
+        private void scheduleFlush() {
+            if (Thread.currentThread() == NioTransport.this) {
+                flush(this);
+            } else {
+                pendingWrites.add(this);
+                selector.wakeup();
+            }
+        }
+
+        public void close() {
+            if (sink != null) {
+                sink.close();
+                sink = null;
+            }
+            try {
+                if (key != null) {
+                    key.cancel();
+                }
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Error closing connection: " + e.getMessage());
+            }
+        }
+    }
+
+    // The socket as a transferFrom source, transferFrom reports end of stream as 0 bytes
+    private class Source implements ReadableByteChannel {
+        private SocketChannel channel;
+        private boolean eof = false;
+
+        public int read(ByteBuffer dst) throws IOException {
+            int n = channel.read(dst);
+            if (n < 0) {
+                eof = true;
+            }
+            return n;
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final int MAX_GATHER = 64;
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private peerProcess process;
+    private ConcurrentLinkedQueue<Connection> pendingRegistrations = new ConcurrentLinkedQueue<Connection>();
+    private ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+
+    public NioTransport(peerProcess process_, int port) throws IOException {
+        super("NioTransport");
+        this.process = process_;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    // Open an outbound connection, blocks until connected
+    public static SocketChannel connect(String hostname, int port) throws IOException {
+        return SocketChannel.open(new InetSocketAddress(hostname, port));
+    }
+
+    // Hand an already connected channel to the selector thread
+    public Connection register(SocketChannel channel, Listener listener) throws IOException {
+        channel.configureBlocking(false);
+        Connection c = new Connection(channel, listener);
+        listener.onConnect(c);
+        pendingRegistrations.add(c);
+        selector.wakeup();
+        return c;
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                selector.select();
+
+                Connection c;
+                while ((c = pendingRegistrations.poll()) != null) {
+                    try {
+                        c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+                        flush(c);
+                    } catch (ClosedChannelException e) {
+                        c.listener.onDisconnect(e);
+                    }
+                }
+                while ((c = pendingWrites.poll()) != null) {
+                    flush(c);
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace(); // Drop this connection, keep accepting
+                        }
+                        continue;
+                    }
+                    c = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            flush(c);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(c);
+                        }
+                    } catch (IOException e) {
+                        c.close();
+                        c.listener.onDisconnect(e);
+                    } catch (RuntimeException e) {
+                        // A Listener failed on this peer's input, only its connection goes
+                        c.close();
+                        c.listener.onFailure(e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Selector failed: " + e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        Listener listener = process.acceptConnection(channel);
+        Connection c = new Connection(channel, listener);
+        channel.configureBlocking(false);
+        listener.onConnect(c);
+        c.key = channel.register(selector, SelectionKey.OP_READ, c);
+    }
+
+    private void read(Connection c) throws IOException {
+        // Deliver every complete frame available in the socket buffer
+        while (c.channel.isOpen()) {
+            if (c.sink != null) {
+                c.sink.transferFrom(c.source);
+                if (c.source.eof) {
+                    throw new IOException("Connection closed by peer");
+                }
+                if (!c.sink.isDone()) {
+                    return; // Rest of the piece arrives later
+                }
+                int index = c.sink.getIndex();
+                c.sink = null;
+                c.listener.onPieceReceived(index);
+                continue;
+            }
+
+            ByteBuffer target = c.payload != null ? c.payload : c.pieceLength > 0 ? c.pieceIndex : c.header;
+            if (c.channel.read(target) == -1) {
+                throw new IOException("Connection closed by peer");
+            }
+            if (target.hasRemaining()) {
+                return;
+            }
+
+            if (!c.shook) {
+                c.shook = true;
+                boolean valid = c.listener.onHandshake(c.header.array());
+                if (!valid) {
+                    c.close();
+                    return;
+                }
+                c.header = ByteBuffer.allocate(5);
+            } else if (target == c.header) {
+                c.header.flip();
+                int len = c.header.getInt();
+                c.type = c.header.get();
+                c.header.clear();
+                if (len < 1) {
+                    throw new IOException("Invalid message length " + len);
+                }
+                if (c.type == Message.PIECE && len > 5) {
+                    c.pieceLength = len - 5; // Index first, then the listener picks where the content goes
+                    c.pieceIndex.clear();
+                } else if (len > 1) {
+                    c.payload = process.acquirePayload(c.type, len - 1);
+                } else {
+                    deliver(c, null);
+                }
+            } else if (target == c.pieceIndex) {
+                int index = c.pieceIndex.getInt(0);
+                int length = c.pieceLength;
+                c.pieceLength = 0;
+                c.sink = c.listener.onPieceStart(index, length);
+                if (c.sink == null) {
+                    c.payload = process.acquirePayload(c.type, length + 4);
+                    c.payload.putInt(index);
+                }
+            } else {
+                ByteBuffer data = c.payload;
+                c.payload = null;
+                data.flip();
+                deliver(c, data);
+            }
+        }
+    }
+
+    private void deliver(Connection c, ByteBuffer data) {
+        c.received.reset(c.type, data);
+        try {
+            c.listener.onMessage(c.received);
+        } finally {
+            if (data != null && c.received.holds(data)) {
+                process.releasePayload(c.type, data);
+            }
+        }
+    }
+
+    private void flush(Connection c) {
+        if (c.key == null || !c.key.isValid()) {
+            return; // Flushed once registered
+        }
+        try {
+            synchronized (c.writeQueue) {
+                while (!c.writeQueue.isEmpty()) {
+                    Object item = c.writeQueue.peek();
+                    boolean done;
+                    if (item instanceof TorrentFile.PieceRegion) {
+                        TorrentFile.PieceRegion region = (TorrentFile.PieceRegion) item;
+                        while (!region.isDone() && region.transferTo(c.channel) > 0);
+                        done = region.isDone();
+                    } else {
+                        // Gather the run of queued byte messages into one write
+                        ArrayList<ByteBuffer> run = new ArrayList<ByteBuffer>();
+                        for (Object o : c.writeQueue) {
+                            if (!(o instanceof ByteBuffer) || run.size() == MAX_GATHER) {
+                                break;
+                            }
+                            run.add((ByteBuffer) o);
+                        }
+                        c.channel.write(run.toArray(new ByteBuffer[0]));
+                        for (ByteBuffer b : run) {
+                            if (b.hasRemaining()) {
+                                break;
+                            }
+                            c.writeQueue.poll();
+                        }
+                        done = !run.get(run.size() - 1).hasRemaining();
+                    }
+                    if (!done) {
+                        break; // Socket buffer full
+                    }
+                    if (item instanceof TorrentFile.PieceRegion) {
+                        c.writeQueue.poll();
+                    }
+                }
+                if (c.writeQueue.isEmpty()) {
+                    c.key.interestOps(SelectionKey.OP_READ);
+                } else {
+                    c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+        } catch (IOException e) {
+            c.close();
+            c.listener.onDisconnect(e);
+        }
+    }
+}
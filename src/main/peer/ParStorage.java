@@ -0,0 +1,120 @@
+package main.peer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// One .par file per piece, copied into the target file once all pieces are in
+public class ParStorage implements PieceStorage {
+
+    private TorrentFile torrentFile;
+    private File file;
+    private boolean complete;
+    private FileChannel fileChannel; // Shared read channel once the file is complete
+    private Set<Integer> unsynced = ConcurrentHashMap.newKeySet(); // .par files written since the last force
+
+    public ParStorage(TorrentFile torrentFile_, File file_, boolean complete_) {
+        this.torrentFile = torrentFile_;
+        this.file = file_;
+        this.complete = complete_;
+    }
+
+    private File parFile(int index) {
+        return new File(file.getPath()+"_"+index+".par");
+    }
+
+    public void write(int index, ByteBuffer data) throws IOException {
+        ByteBuffer buf = data.duplicate();
+        // Truncated, a copy left by a run that stopped before journaling it may be torn
+        try (FileChannel channel = FileChannel.open(parFile(index).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+        unsynced.add(index);
+    }
+
+    public byte[] read(int index) throws IOException {
+        byte[] data = new byte[torrentFile.getPieceLength(index)];
+        FileInputStream fis;
+        boolean combined;
+        synchronized (this) { // Not while complete() switches over
+            combined = complete;
+            fis = new FileInputStream(combined ? file : parFile(index));
+        }
+        if (combined) {
+            fis.skip((long) index * torrentFile.getPieceSize());
+        }
+        fis.read(data);
+        fis.close();
+        return data;
+    }
+
+    public TorrentFile.PieceRegion region(int index) throws IOException {
+        int length = torrentFile.getPieceLength(index);
+        synchronized (this) {
+            // Opened under the lock, complete() only deletes .par files after switching over
+            if (!complete) {
+                FileChannel channel = FileChannel.open(parFile(index).toPath(), StandardOpenOption.READ);
+                return new TorrentFile.PieceRegion(index, channel, 0, length, true);
+            }
+            if (fileChannel == null) {
+                fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+        }
+        return new TorrentFile.PieceRegion(index, fileChannel, (long) index * torrentFile.getPieceSize(), length, false);
+    }
+
+    public TorrentFile.PieceRegion receiveRegion(int index) throws IOException {
+        FileChannel channel = FileChannel.open(parFile(index).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        unsynced.add(index);
+        return new TorrentFile.PieceRegion(index, channel, 0, torrentFile.getPieceLength(index), true);
+    }
+
+    // Sync every .par file written since the last call. Files still being received stay
+    // in the set until they hold the whole piece
+    public void force() throws IOException {
+        for (Iterator<Integer> it = unsynced.iterator(); it.hasNext();) {
+            int index = it.next();
+            try (FileChannel channel = FileChannel.open(parFile(index).toPath(), StandardOpenOption.WRITE)) {
+                if (channel.size() < torrentFile.getPieceLength(index)) {
+                    continue;
+                }
+                it.remove();
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                it.remove(); // Already copied into the target file
+            }
+        }
+    }
+
+    // Combine the .par files, pieces are served from them until the target file is synced,
+    // then from the target file, and only then are the .par files deleted
+    public void complete() throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        for (int i = 0; i < torrentFile.getPieceCount(); i++) {
+            FileInputStream fis = new FileInputStream(parFile(i));
+            byte[] data = new byte[torrentFile.getPieceLength(i)];
+            fis.read(data);
+            fos.write(data);
+            fis.close();
+        }
+        fos.getFD().sync();
+        fos.close();
+        synchronized (this) {
+            this.complete = true;
+        }
+        for (int i = 0; i < torrentFile.getPieceCount(); i++) {
+            parFile(i).delete(); // Regions still open on it keep reading
+        }
+        unsynced.clear();
+    }
+}
@@ -0,0 +1,235 @@
+/*
+    Peer Writer
+
+    * Outbound message queue for one peer (blocking transport)
+    * Drained by a single writer task, so messages from different threads never interleave
+    * Consecutive small control messages (Have, Interested, Choke, ...) are coalesced into
+      one socket write, flushed once WriteCoalesceBytes are buffered, WriteCoalesceMillis
+      have passed or the queue runs empty
+    * Pieces are bounded by OutboundQueueCapacity, control messages are always accepted
+      so a slow peer can never block the Have fan-out of other handlers
+    * Queue depth counters show when a slow peer is backing up
+    * Queued pieces can be withdrawn when the peer sends CANCEL
+
+*/
+
+package main.peer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.peer.message.Message;
+
+public class PeerWriter implements Runnable {
+
+    // Piece message queued behind the bounded slots, either whole bytes or header + file region
+    private static class PieceItem {
+        private int index;
+        private byte[] bytes;
+        private TorrentFile.PieceRegion region;
+
+        private PieceItem(int index, byte[] bytes, TorrentFile.PieceRegion region) {
+            this.index = index;
+            this.bytes = bytes;
+            this.region = region;
+        }
+    }
+
+    private OutputStream out;
+    private WritableByteChannel channel;
+    private int coalesceBytes;
+    private int coalesceMillis;
+
+    private LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+    private Semaphore pieceSlots;
+    private int capacity;
+
+    // Metrics
+    private AtomicInteger maxDepth = new AtomicInteger();
+    private AtomicLong messagesWritten = new AtomicLong();
+    private AtomicLong bytesWritten = new AtomicLong();
+    private AtomicLong socketWrites = new AtomicLong();
+
+    public PeerWriter(OutputStream out_, WritableByteChannel channel_, int capacity_, int coalesceBytes_, int coalesceMillis_) {
+        this.out = out_;
+        this.channel = channel_ != null ? channel_ : Channels.newChannel(out_);
+        this.capacity = capacity_;
+        this.pieceSlots = new Semaphore(capacity_);
+        this.coalesceBytes = coalesceBytes_;
+        this.coalesceMillis = coalesceMillis_;
+    }
+
+    // Queue a control message, never blocks
+    public void send(byte[] b) {
+        enqueue(b);
+    }
+
+    // Queue a piece message, blocks while OutboundQueueCapacity pieces are waiting
+    public void sendPiece(int index, byte[] b) {
+        acquireSlot();
+        enqueue(new PieceItem(index, b, null));
+    }
+
+    public void sendPiece(byte[] header, TorrentFile.PieceRegion region) {
+        acquireSlot();
+        enqueue(new PieceItem(region.getIndex(), header, region));
+    }
+
+    // Withdraw a queued piece, false if it is already being written or was never queued
+    public boolean cancelPiece(int index) {
+        for (Object item : queue) {
+            if (item instanceof PieceItem && ((PieceItem) item).index == index && queue.remove(item)) {
+                withdrawn((PieceItem) item);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Withdraw a queued Block, matched by the index and offset in its header
+    public boolean cancelBlock(int index, int begin) {
+        for (Object item : queue) {
+            if (item instanceof PieceItem && isBlock(((PieceItem) item).bytes, index, begin) && queue.remove(item)) {
+                withdrawn((PieceItem) item);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isBlock(byte[] header, int index, int begin) {
+        if (header.length < 13 || header[4] != Message.BLOCK) {
+            return false;
+        }
+        ByteBuffer b = ByteBuffer.wrap(header);
+        return b.getInt(5) == index && b.getInt(9) == begin;
+    }
+
+    private void withdrawn(PieceItem piece) {
+        if (piece.region != null) {
+            piece.region.close();
+        }
+        pieceSlots.release();
+    }
+
+    private void acquireSlot() {
+        try {
+            pieceSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(Object item) {
+        queue.add(item);
+        int depth = queue.size();
+        maxDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxDepth.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getMessagesWritten() {
+        return messagesWritten.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getSocketWrites() {
+        return socketWrites.get();
+    }
+
+    public void run() {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(coalesceBytes);
+        long batchStart = 0;
+        try {
+            while (true) {
+                Object item;
+                if (batch.size() == 0) {
+                    item = queue.take();
+                } else {
+                    long wait = coalesceMillis - (System.currentTimeMillis() - batchStart);
+                    item = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                }
+
+                try {
+                    if (item == null) {
+                        // Coalescing window closed
+                        flush(batch);
+                    } else if (item instanceof byte[]) {
+                        if (batch.size() == 0) {
+                            batchStart = System.currentTimeMillis();
+                        }
+                        batch.writeBytes((byte[]) item);
+                        messagesWritten.incrementAndGet();
+                        if (batch.size() >= coalesceBytes) {
+                            flush(batch);
+                        }
+                    } else {
+                        // Keep ordering: everything queued before the piece goes out first
+                        flush(batch);
+                        writePiece((PieceItem) item);
+                    }
+                } catch (IOException e) {
+                    batch.reset();
+                    System.out.println("Connection Error: Could not write to peer. " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+    }
+
+    private void flush(ByteArrayOutputStream batch) throws IOException {
+        if (batch.size() == 0) {
+            return;
+        }
+        int size = batch.size();
+        try {
+            batch.writeTo(out);
+        } finally {
+            batch.reset();
+        }
+        bytesWritten.addAndGet(size);
+        socketWrites.incrementAndGet();
+    }
+
+    private void writePiece(PieceItem piece) throws IOException {
+        try {
+            out.write(piece.bytes);
+            bytesWritten.addAndGet(piece.bytes.length);
+            if (piece.region != null) {
+                while (!piece.region.isDone()) {
+                    bytesWritten.addAndGet(piece.region.transferTo(channel));
+                }
+            }
+            messagesWritten.incrementAndGet();
+            socketWrites.incrementAndGet();
+        } finally {
+            if (piece.region != null) {
+                piece.region.close();
+            }
+            pieceSlots.release();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+    Piece Availability
+
+    * Counts how many connected peers hold each piece we are still missing
+    * Updated incrementally on BITFIELD, HAVE and disconnect
+    * Missing pieces are kept ordered by count in one array split into buckets
+      (all pieces held by 0 peers, then 1 peer, ...), so a count change or a
+      completed piece is a swap at each bucket edge instead of a re-sort
+    * Each bucket is also a bitset of its pieces, pickRarest walks from the rarest bucket
+      up, ANDs it with the peer's bitfield 64 pieces at a time and returns the first
+      piece the caller accepts, or -1, it never waits or loops on a full request set
+    * A pick costs at most (buckets walked) x (pieces / 64) word operations plus one
+      accept test per candidate the peer has, candidates are only rejected while
+      requested already, so that is bounded by the requests in flight
+
+*/
+
+package main.peer;
+
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+
+public class PieceAvailability {
+
+    private int[] count; // Peers holding each piece
+    private int[] order; // Missing pieces sorted by count, completed pieces after 'live'
+    private int[] pos; // Position of each piece in order
+    private int[] bucketStart; // First position of each count in order
+    private long[][] members; // Missing pieces of each count as bitsets, 64 per long like BitfieldObj
+    private int live; // Number of missing pieces
+    private int pieceCount;
+
+    private ReentrantLock lock = new ReentrantLock();
+    private Random rnd = new Random();
+
+    public PieceAvailability(int pieceCount_, BitfieldObj local) {
+        this.pieceCount = pieceCount_;
+        this.count = new int[pieceCount];
+        this.order = new int[pieceCount];
+        this.pos = new int[pieceCount];
+        this.bucketStart = new int[2];
+        this.members = new long[2][(pieceCount + 63) >>> 6];
+        for (int i = 0; i < pieceCount; i++) {
+            order[i] = i;
+            pos[i] = i;
+            setMember(0, i);
+        }
+        this.live = pieceCount;
+        bucketStart[1] = live;
+        local.forEachSetBit(this::complete);
+    }
+
+    private void swap(int a, int b) {
+        int pa = order[a];
+        int pb = order[b];
+        order[a] = pb;
+        order[b] = pa;
+        pos[pb] = a;
+        pos[pa] = b;
+    }
+
+    private void setMember(int c, int piece) {
+        members[c][piece >>> 6] |= 1L << piece;
+    }
+
+    private void clearMember(int c, int piece) {
+        members[c][piece >>> 6] &= ~(1L << piece);
+    }
+
+    // bucketStart[c] for c past the highest count is the end of the live region
+    private int start(int c) {
+        return c < bucketStart.length ? bucketStart[c] : live;
+    }
+
+    private void growBuckets(int c) {
+        if (c + 1 < bucketStart.length) {
+            return;
+        }
+        int old = bucketStart.length;
+        int[] grown = new int[Math.max(c + 2, old * 2)];
+        System.arraycopy(bucketStart, 0, grown, 0, old);
+        for (int i = old; i < grown.length; i++) {
+            grown[i] = live;
+        }
+        bucketStart = grown;
+        long[][] grownMembers = new long[grown.length][];
+        System.arraycopy(members, 0, grownMembers, 0, members.length);
+        for (int i = members.length; i < grown.length; i++) {
+            grownMembers[i] = new long[(pieceCount + 63) >>> 6];
+        }
+        members = grownMembers;
+    }
+
+    private void increment(int piece) {
+        int c = count[piece];
+        count[piece]++;
+        if (pos[piece] >= live) {
+            return; // Already downloaded
+        }
+        growBuckets(c + 1);
+        // Move to the end of its bucket, then shrink the bucket by one
+        int last = start(c + 1) - 1;
+        swap(pos[piece], last);
+        bucketStart[c + 1]--;
+        clearMember(c, piece);
+        setMember(c + 1, piece);
+    }
+
+    private void decrement(int piece) {
+        int c = count[piece];
+        if (c == 0) {
+            return;
+        }
+        count[piece]--;
+        if (pos[piece] >= live) {
+            return;
+        }
+        // Move to the start of its bucket, then grow the bucket below by one
+        int first = bucketStart[c];
+        swap(pos[piece], first);
+        bucketStart[c]++;
+        clearMember(c, piece);
+        setMember(c - 1, piece);
+    }
+
+    // Local peer stored the piece, stop offering it
+    public void complete(int piece) {
+        lock.lock();
+        try {
+            if (pos[piece] >= live) {
+                return;
+            }
+            // Bubble to the end of each higher bucket, then out of the live region
+            int c = count[piece];
+            for (int b = c + 1; b < bucketStart.length; b++) {
+                int last = start(b) - 1;
+                if (last >= pos[piece]) {
+                    swap(pos[piece], last);
+                }
+                bucketStart[b]--;
+            }
+            swap(pos[piece], live - 1);
+            live--;
+            clearMember(c, piece);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stored piece was lost (write failed), offer it again
+    public void restore(int piece) {
+        lock.lock();
+        try {
+            if (pos[piece] < live) {
+                return;
+            }
+            // Back into the live region at the end of the highest bucket, then down to its count
+            swap(pos[piece], live);
+            live++;
+            int c = count[piece];
+            for (int b = bucketStart.length - 1; b > c; b--) {
+                swap(pos[piece], bucketStart[b]);
+                bucketStart[b]++;
+            }
+            setMember(c, piece);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addHave(int piece) {
+        lock.lock();
+        try {
+            increment(piece);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addPeer(BitfieldObj bf) {
+        lock.lock();
+        try {
+            bf.forEachSetBit(this::increment);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void removePeer(BitfieldObj bf) {
+        if (bf == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            bf.forEachSetBit(this::decrement);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int missingCount() {
+        return live;
+    }
+
+    // Copy of the pieces still missing, rarest first
+    public int[] missingPieces() {
+        lock.lock();
+        try {
+            int[] missing = new int[live];
+            System.arraycopy(order, 0, missing, 0, live);
+            return missing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCount(int piece) {
+        return count[piece];
+    }
+
+    // Rarest missing piece the peer has that the filter accepts, starting at a random
+    // word and bit in each bucket so peers asking at the same time spread over equally
+    // rare pieces
+    public int pickRarest(BitfieldObj theirs, IntPredicate accept) {
+        if (theirs == null) {
+            return -1;
+        }
+        lock.lock();
+        try {
+            int words = members[0].length;
+            for (int c = 1; c < bucketStart.length; c++) {
+                if (start(c + 1) - bucketStart[c] <= 0) {
+                    continue;
+                }
+                long[] bucket = members[c];
+                int first = rnd.nextInt(words);
+                int shift = rnd.nextInt(64);
+                for (int k = 0; k < words; k++) {
+                    int w = (first + k) % words;
+                    // Rotated so the lowest set bit is the first at or after shift
+                    long word = Long.rotateRight(bucket[w] & theirs.word(w), shift);
+                    while (word != 0) {
+                        int piece = (w << 6) + ((Long.numberOfTrailingZeros(word) + shift) & 63);
+                        if (accept.test(piece)) {
+                            return piece;
+                        }
+                        word &= word - 1;
+                    }
+                }
+            }
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+    Piece Buffers
+
+    * Bounded pool of buffers one piece message payload long (4-byte index + pieceSize)
+    * A received piece is read into one, verified and written to storage from it, and
+      released by the DiskWriter, so steady-state downloading allocates no payload memory
+    * Direct buffers with TransportMode nio, which reads straight from the socket channel,
+      heap buffers with the blocking transport, whose streams read into arrays
+    * At most "PieceBuffers" buffers are created, when all of them are in use a one-off
+      heap buffer is handed out instead and counted as an exhaustion
+
+*/
+
+package main.peer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PieceBuffers {
+
+    private int bufferSize;
+    private int count;
+    private boolean direct;
+    private ArrayBlockingQueue<ByteBuffer> idle;
+
+    // Metrics
+    private AtomicInteger created = new AtomicInteger();
+    private AtomicInteger lent = new AtomicInteger(); // Occupancy
+    private AtomicInteger peak = new AtomicInteger();
+    private AtomicLong acquired = new AtomicLong();
+    private AtomicLong exhausted = new AtomicLong();
+
+    public PieceBuffers(int pieceSize, int count_, boolean direct_) {
+        this.bufferSize = pieceSize + 4;
+        this.count = count_;
+        this.direct = direct_;
+        this.idle = new ArrayBlockingQueue<ByteBuffer>(count_);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    // Buffer with its limit set to size, never null
+    public ByteBuffer acquire(int size) {
+        if (size > bufferSize) {
+            return ByteBuffer.allocate(size); // Malformed message, not worth a pooled buffer
+        }
+        acquired.incrementAndGet();
+        ByteBuffer buf = idle.poll();
+        if (buf == null && created.get() < count) {
+            if (created.incrementAndGet() <= count) {
+                buf = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+            } else {
+                created.decrementAndGet(); // Lost the race for the last one
+            }
+        }
+        if (buf == null) {
+            exhausted.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+        peak.accumulateAndGet(lent.incrementAndGet(), Math::max);
+        buf.clear();
+        buf.limit(size);
+        return buf;
+    }
+
+    // Return a buffer from acquire, one-off buffers are left to the GC
+    public void release(ByteBuffer buf) {
+        if (buf.capacity() != bufferSize || buf.isDirect() != direct) {
+            return;
+        }
+        int n;
+        do {
+            n = lent.get();
+            if (n == 0) {
+                return; // A one-off of the same shape already took this slot
+            }
+        } while (!lent.compareAndSet(n, n - 1));
+        idle.offer(buf);
+    }
+
+    public int getInUse() {
+        return lent.get();
+    }
+
+    public int getPeakInUse() {
+        return peak.get();
+    }
+
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    public String toString() {
+        return String.format("piece buffers: %d of %d %s buffers of %d bytes in use (peak %d), %d of %d acquires exhausted the pool",
+                getInUse(), count, direct ? "direct" : "heap", bufferSize, getPeakInUse(), getExhausted(), acquired.get());
+    }
+}
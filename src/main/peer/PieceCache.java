@@ -0,0 +1,112 @@
+/*
+    Piece Cache
+
+    * Recently served pieces kept in memory, so a piece requested by several peers in
+      a short window is read from disk once. Received pieces are not cached, downloading
+      would only churn the cache with an allocation per piece
+    * Bounded by PieceCacheBytes, least recently used pieces are evicted first
+    * Content lives in direct buffers outside the Java heap
+    * Hits return a read-only view of the cached buffer, so serving a piece copies it once,
+      into the message frame. Evicted buffers are never reused, a view may still be in use
+    * Hit, miss and eviction counters are written to the log on exit
+
+*/
+
+package main.peer;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class PieceCache {
+
+    private long capacity;
+    private long size = 0;
+    private LinkedHashMap<Integer, ByteBuffer> pieces = new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true); // Access order
+    private ReentrantLock lock = new ReentrantLock();
+
+    // Metrics
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+
+    public PieceCache(long capacity_) {
+        this.capacity = capacity_;
+    }
+
+    // Read-only view of the cached piece, null on a miss
+    public ByteBuffer get(int index) {
+        lock.lock();
+        try {
+            ByteBuffer buf = pieces.get(index);
+            if (buf == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return buf.asReadOnlyBuffer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(int index, byte[] data) {
+        put(index, ByteBuffer.wrap(data));
+    }
+
+    // Copies the content (position to limit) of data, which may be a pooled buffer.
+    // The copy is made before taking the lock, a racing put of the same piece wins
+    public void put(int index, ByteBuffer data) {
+        int length = data.remaining();
+        if (length > capacity) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(length);
+        buf.put(data.duplicate());
+        buf.flip();
+        lock.lock();
+        try {
+            if (pieces.containsKey(index)) {
+                return;
+            }
+            // Evict from the least recently used end until the piece fits
+            Iterator<Map.Entry<Integer, ByteBuffer>> it = pieces.entrySet().iterator();
+            while (size + length > capacity && it.hasNext()) {
+                ByteBuffer old = it.next().getValue();
+                it.remove();
+                size -= old.capacity();
+                evictions.incrementAndGet();
+            }
+
+            pieces.put(index, buf);
+            size += buf.capacity();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String toString() {
+        long total = getHits() + getMisses();
+        return String.format("piece cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d of %d bytes used",
+                getHits(), getMisses(), total == 0 ? 0.0 : 100.0 * getHits() / total, getEvictions(), size, capacity);
+    }
+}
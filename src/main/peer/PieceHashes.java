@@ -0,0 +1,134 @@
+/*
+    Piece Hashes
+
+    * Digest of every piece (SHA-1 or SHA-256), stored in <FileName>.hashes next to Common.cfg
+    * Generated once from a complete file, by the first seeder that starts without one
+      or ahead of time with: java -cp bin main.peer.PieceHashes <file> <pieceSize> [SHA-1|SHA-256]
+    * Received pieces are checked by the DiskWriter before they are stored, a seeder
+      checks its whole file at startup
+    * Whole-file passes run on the common fork-join pool, one task per piece
+
+*/
+
+package main.peer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+public class PieceHashes {
+
+    private static final int MAGIC = 0x47544831; // "GTH1"
+
+    private String algorithm;
+    private int fileSize;
+    private int pieceSize;
+    private byte[][] digests;
+    private ThreadLocal<MessageDigest> digest;
+
+    public PieceHashes(String algorithm_, int fileSize_, int pieceSize_, int pieceCount) throws NoSuchAlgorithmException {
+        MessageDigest.getInstance(algorithm_); // Fail early on an unknown algorithm
+        this.algorithm = algorithm_;
+        this.fileSize = fileSize_;
+        this.pieceSize = pieceSize_;
+        this.digests = new byte[pieceCount][];
+        this.digest = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public boolean matches(int fileSize_, int pieceSize_) {
+        return fileSize == fileSize_ && pieceSize == pieceSize_;
+    }
+
+    public byte[] digest(byte[] data) {
+        return digest.get().digest(data);
+    }
+
+    public void set(int index, byte[] hash) {
+        digests[index] = hash;
+    }
+
+    // Content matches the recorded digest
+    public boolean verify(int index, byte[] data) {
+        return Arrays.equals(digests[index], digest(data));
+    }
+
+    public boolean verify(int index, ByteBuffer data) {
+        MessageDigest md = digest.get();
+        md.update(data.duplicate());
+        return Arrays.equals(digests[index], md.digest());
+    }
+
+    public static PieceHashes load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a piece hash file");
+            }
+            String algorithm = in.readUTF();
+            int fileSize = in.readInt();
+            int pieceSize = in.readInt();
+            int pieceCount = in.readInt();
+            PieceHashes hashes = new PieceHashes(algorithm, fileSize, pieceSize, pieceCount);
+            int length = in.readUnsignedByte();
+            for (int i = 0; i < pieceCount; i++) {
+                hashes.digests[i] = new byte[length];
+                in.readFully(hashes.digests[i]);
+            }
+            return hashes;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    // Written next to the target and renamed, so peers never read a partial file
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(algorithm);
+            out.writeInt(fileSize);
+            out.writeInt(pieceSize);
+            out.writeInt(digests.length);
+            out.writeByte(digests[0].length);
+            for (byte[] d : digests) {
+                out.write(d);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: PieceHashes <file> <pieceSize> [SHA-1|SHA-256]");
+            return;
+        }
+        File file = new File(args[0]);
+        int pieceSize = Integer.parseInt(args[1]);
+        String algorithm = args.length > 2 ? args[2] : "SHA-1";
+
+        long start = System.currentTimeMillis();
+        TorrentFile tf = new TorrentFile((int) file.length(), pieceSize, file, "file");
+        PieceHashes hashes = tf.computeHashes(algorithm);
+        File out = new File(file.getName() + ".hashes");
+        hashes.save(out);
+        System.out.printf("Wrote %s: %d pieces in %d ms\n", out, tf.getPieceCount(), System.currentTimeMillis() - start);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+    Piece Journal
+
+    * Records which pieces are stored in <file>.journal, so a restarted peer resumes
+      with its bitfield instead of downloading everything again
+    * Layout: header (magic, file size, piece size, storage mode), a bitfield snapshot,
+      then one 4-byte index per piece stored since the snapshot
+    * Stored pieces are collected and synced every JournalSyncMillis: the storage is
+      forced first, then the indexes are appended and forced, so the journal never
+      names a piece whose content could still be lost
+    * Once the appended indexes outgrow the snapshot, the journal is compacted into a
+      new snapshot written next to it and renamed over it
+    * Deleted when the download completes
+
+*/
+
+package main.peer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class PieceJournal implements Runnable {
+
+    private static final int MAGIC = 0x47544a31; // "GTJ1"
+
+    private File file;
+    private int fileSize;
+    private int pieceSize;
+    private int pieceCount;
+    private String mode;
+    private PieceStorage storage;
+    private int syncMillis;
+
+    private BitfieldObj durable; // Pieces named in the journal file
+    private ArrayList<Integer> pending = new ArrayList<Integer>(); // Stored, not yet journaled
+    private int appended = 0; // Indexes after the snapshot
+    private FileOutputStream out;
+    private ReentrantLock lock = new ReentrantLock();
+    private ReentrantLock syncLock = new ReentrantLock();
+
+    public PieceJournal(File file_, int fileSize_, int pieceSize_, int pieceCount_, String mode_, PieceStorage storage_, int syncMillis_) {
+        this.file = file_;
+        this.fileSize = fileSize_;
+        this.pieceSize = pieceSize_;
+        this.pieceCount = pieceCount_;
+        this.mode = mode_;
+        this.storage = storage_;
+        this.syncMillis = syncMillis_;
+        this.durable = new BitfieldObj(pieceCount);
+    }
+
+    // Read the journal left by an earlier run and set its pieces in bitfield,
+    // returns the number of pieces restored. Opens the journal for appending.
+    public int load(BitfieldObj bitfield) throws IOException {
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                if (in.readInt() == MAGIC && in.readInt() == fileSize && in.readInt() == pieceSize && in.readUTF().equals(mode)) {
+                    byte[] snapshot = new byte[durable.getData().length];
+                    in.readFully(snapshot);
+                    durable = new BitfieldObj(snapshot, pieceCount);
+                    while (true) {
+                        int index = in.readInt(); // A torn last record ends in EOFException
+                        if (index >= 0 && index < pieceCount) {
+                            durable.setBit(index);
+                        }
+                    }
+                }
+            } catch (EOFException e) {
+                // End of the records
+            }
+        }
+
+        durable.forEachSetBit(bitfield::setBit);
+        compact();
+        return durable.numberOfFinishedPieces();
+    }
+
+    // Piece is stored, journaled with the next sync
+    public void append(int index) {
+        lock.lock();
+        try {
+            pending.add(index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void sync() throws IOException {
+        syncLock.lock();
+        try {
+            ArrayList<Integer> batch;
+            lock.lock();
+            try {
+                if (pending.isEmpty() || out == null) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<Integer>();
+            } finally {
+                lock.unlock();
+            }
+
+            storage.force();
+            ByteArrayOutputStream records = new ByteArrayOutputStream(batch.size() * 4);
+            DataOutputStream data = new DataOutputStream(records);
+            for (int index : batch) {
+                data.writeInt(index);
+                durable.setBit(index);
+            }
+            out.write(records.toByteArray());
+            out.getFD().sync();
+            appended += batch.size();
+
+            if (appended * 4 > durable.getData().length) {
+                compact();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // Replace the journal with a snapshot of the journaled pieces
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp); DataOutputStream snapshot = new DataOutputStream(fos)) {
+            snapshot.writeInt(MAGIC);
+            snapshot.writeInt(fileSize);
+            snapshot.writeInt(pieceSize);
+            snapshot.writeUTF(mode);
+            snapshot.write(durable.getData());
+            snapshot.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (out != null) {
+            out.close();
+        }
+        out = new FileOutputStream(file, true);
+        appended = 0;
+    }
+
+    // Download complete, the target file itself is the record now
+    public void delete() {
+        syncLock.lock();
+        try {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            syncLock.unlock();
+        }
+        file.delete();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(syncMillis);
+                sync();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("Could not update piece journal: " + e.getMessage());
+            }
+        }
+    }
+}
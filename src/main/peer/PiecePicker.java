@@ -0,0 +1,33 @@
+/*
+    Piece Picker
+
+    Strategy choosing the next piece to request from an unchoked peer,
+    selected with "PiecePicker" in Common.cfg:
+    * random - uniformly among the pieces the peer can supply
+    * rarest - rarest in the swarm first
+    * sequential - lowest index first, for streaming
+    * endgame - rarest first, then duplicate requests for the last in-flight pieces (default)
+
+    Pickers run on several handler threads at once without a lock, a picked piece
+    is only requested once its RequestTracker claim succeeds.
+*/
+
+package main.peer;
+
+import main.peer.peerProcess.PeerInfo;
+
+public interface PiecePicker {
+
+    // Next piece to request from the peer, -1 if there is none
+    int pick(PeerInfo peer);
+
+    // Whether the download reached the point where pieces are requested from several peers
+    default boolean isEndgame() {
+        return false;
+    }
+
+    // Peer has it, we don't, and nobody was asked for it yet
+    static boolean canRequest(PeerInfo peer, int piece, BitfieldObj local, RequestTracker requests) {
+        return peer.bf.checkBit(piece) && !local.checkBit(piece) && !requests.isClaimed(piece);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+    Piece Storage
+
+    Where TorrentFile keeps piece content, selected with "StorageMode" in Common.cfg:
+    * par - one <file>_<index>.par file per piece, combined into the target file at the end
+    * file - preallocated <file>.part written at index * pieceSize, renamed when complete (default)
+    * mmap - same file as 'file', accessed through memory-mapped windows
+
+    TorrentFile checks the bitfield, storages only move bytes.
+    Reads and writes of different pieces may run concurrently.
+*/
+
+package main.peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface PieceStorage {
+
+    // Store a downloaded piece, data is read from its position to its limit
+    // without moving them, it may be a pooled direct buffer
+    void write(int index, ByteBuffer data) throws IOException;
+
+    // Content of a stored piece
+    byte[] read(int index) throws IOException;
+
+    // Read a stored piece into dst from its position on
+    default void read(int index, ByteBuffer dst) throws IOException {
+        dst.put(read(index));
+    }
+
+    // Stored piece as a file region for zero-copy sending
+    TorrentFile.PieceRegion region(int index) throws IOException;
+
+    // Writable region of a missing piece for receiving it straight from a socket
+    TorrentFile.PieceRegion receiveRegion(int index) throws IOException;
+
+    // Make the pieces written so far survive a crash
+    void force() throws IOException;
+
+    // Every piece is stored, produce the target file
+    void complete() throws IOException;
+}
@@ -1,14 +1,17 @@
 package main.peer;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
 
 import main.peer.message.Choke;
 import main.peer.message.Unchoke;
 import main.peer.peerProcess.PeerInfo;
 
-public class PreferredHandler extends Thread {
+public class PreferredHandler implements Runnable {
     enum Type {
         CHOKED,
         PREFERRED,
@@ -21,9 +24,34 @@ public class PreferredHandler extends Thread {
     private int unchokeInterval;
     private int optimisticInterval;
     private boolean complete;
+    // Lock instead of synchronized methods so virtual threads are not pinned while sending
+    private ReentrantLock lock = new ReentrantLock();
 
     Random rnd = new Random();
 
+    // A peer with the values it is ranked by, taken once so they cannot change during the sort
+    private static class Candidate {
+        private PeerInfo peer;
+        private int timeouts;
+        private double rate;
+        private double uploadRate;
+
+        private Candidate(PeerInfo peer_) {
+            this.peer = peer_;
+            this.timeouts = peer_.timeouts.get();
+            this.rate = peer_.download.getRate();
+            this.uploadRate = peer_.upload.getRate();
+        }
+    }
+
+    private static final Comparator<Candidate> BY_TIMEOUTS_THEN_RATE = Comparator
+            .comparingInt((Candidate c) -> c.timeouts)
+            .thenComparing(Comparator.comparingDouble((Candidate c) -> c.rate).reversed());
+
+    // Seeders download nothing, they keep the peers that take our pieces the fastest
+    private static final Comparator<Candidate> BY_UPLOAD_RATE = Comparator
+            .comparingDouble((Candidate c) -> c.uploadRate).reversed();
+
     public PreferredHandler(PeerInfo[] peers, peerProcess process_, int numPreferredNeighbors_, int unchokeInterval_, int optimisticInterval_, boolean complete_) {
         this.neighbors = new HashMap<PeerInfo, Type>();
         this.process = process_;
@@ -41,16 +69,22 @@ public class PreferredHandler extends Thread {
     }
 
     public void addNeighbor(PeerInfo peer) {
-        synchronized (neighbors) {
+        lock.lock();
+        try {
             if (!neighbors.containsKey(peer)) {
                 neighbors.put(peer, Type.CHOKED);
             }
+        } finally {
+            lock.unlock();
         }
     }
 
     public void removeNeighbor(PeerInfo p) {
-        synchronized (neighbors) {
+        lock.lock();
+        try {
             neighbors.remove(p);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -58,40 +92,59 @@ public class PreferredHandler extends Thread {
         this.complete = true;
     }
 
-    public synchronized boolean isChoked(PeerInfo peer) {
-        if (neighbors.get(peer) == Type.CHOKED) {
-            return true;
+    public boolean isChoked(PeerInfo peer) {
+        lock.lock();
+        try {
+            if (neighbors.get(peer) == Type.CHOKED) {
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 
-    public synchronized void setChoked(PeerInfo peer) {
-        neighbors.replace(peer, Type.CHOKED);
-        peer.isChoking = true;
-        peer.sendMessage(new Choke());
+    public void setChoked(PeerInfo peer) {
+        lock.lock();
+        try {
+            neighbors.replace(peer, Type.CHOKED);
+            peer.isChoking = true;
+            peer.sendMessage(new Choke());
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void setPreferred(PeerInfo peer) {
-        // Don't send unchoke msg if already unchoked
-        if (isChoked(peer)) {
-            neighbors.replace(peer, Type.PREFERRED);
-            peer.isChoking = false;
-            peer.sendMessage(new Unchoke());
-        } else {
-            neighbors.replace(peer, Type.PREFERRED);
-            peer.isChoking = false;
+    public void setPreferred(PeerInfo peer) {
+        lock.lock();
+        try {
+            // Don't send unchoke msg if already unchoked
+            if (isChoked(peer)) {
+                neighbors.replace(peer, Type.PREFERRED);
+                peer.isChoking = false;
+                peer.sendMessage(new Unchoke());
+            } else {
+                neighbors.replace(peer, Type.PREFERRED);
+                peer.isChoking = false;
+            }
+        } finally {
+            lock.unlock();
         }
-
     }
 
-    public synchronized void setOptimistic(PeerInfo peer) {
-        if (isChoked(peer)) {
-            neighbors.replace(peer, Type.OPTIMISTIC);
-            peer.isChoking = false;
-            peer.sendMessage(new Unchoke());
-        } else {
-            neighbors.replace(peer, Type.OPTIMISTIC);
-            peer.isChoking = false;
+    public void setOptimistic(PeerInfo peer) {
+        lock.lock();
+        try {
+            if (isChoked(peer)) {
+                neighbors.replace(peer, Type.OPTIMISTIC);
+                peer.isChoking = false;
+                peer.sendMessage(new Unchoke());
+            } else {
+                neighbors.replace(peer, Type.OPTIMISTIC);
+                peer.isChoking = false;
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -103,32 +156,35 @@ public class PreferredHandler extends Thread {
                     continue;
                 }
 
-                ArrayList<PeerInfo> potentialPreferredNeighbors = new ArrayList<PeerInfo>();
+                ArrayList<Candidate> candidates = new ArrayList<Candidate>();
                 for (PeerInfo peer : neighbors.keySet()) {
+                    peer.download.tick();
+                    peer.upload.tick();
                     if (peer.isInterested) {
-                        potentialPreferredNeighbors.add(peer);
+                        candidates.add(new Candidate(peer));
                     }
                 }
 
-                // sort by download rate
-                potentialPreferredNeighbors.sort((p1, p2) -> p1.downloadRate > p2.downloadRate ? 1 : -1);
+                // Fastest first by the averaged download rate (upload rate once complete), peers that let
+                // requests time out go last, shuffled first so peers with equal rates are picked at random
+                // (the sort is stable)
+                Collections.shuffle(candidates, rnd);
+                candidates.sort(complete ? BY_UPLOAD_RATE : BY_TIMEOUTS_THEN_RATE);
+                ArrayList<PeerInfo> potentialPreferredNeighbors = new ArrayList<PeerInfo>();
+                for (Candidate c : candidates) {
+                    potentialPreferredNeighbors.add(c.peer);
+                }
 
                 boolean peersChanged = false;
                 for (int i = 0; i < numPreferredNeighbors; i++) {
                     if (potentialPreferredNeighbors.size() > 0) {
-                        PeerInfo peer;
-                        if (complete) {
-                            peer = potentialPreferredNeighbors.get(rnd.nextInt(potentialPreferredNeighbors.size()));
-                        } else {
-                            // TODO: Get random if other peers have same download rate
-                            peer = potentialPreferredNeighbors.get(0);
-                        }
+                        PeerInfo peer = potentialPreferredNeighbors.get(0);
                         // Check if peers changed
                         if (neighbors.get(peer) != Type.PREFERRED) {
                             peersChanged = true;
                         }
                         setPreferred(peer);
-                        potentialPreferredNeighbors.remove(0);
+                        potentialPreferredNeighbors.remove(peer);
                     } else {
                         break;
                     }
@@ -146,12 +202,19 @@ public class PreferredHandler extends Thread {
                     if (neighbors.get(peer) == Type.PREFERRED) {
                         logNeighbors.add(Integer.toString(peer.ID));
                     }
-                    peer.downloadRate = 0;
+                    peer.timeouts.updateAndGet(t -> t / 2);
                 }
 
                 if (peersChanged) {
                     process.writeToLog("has the preferred neighbors " + String.join(", ", logNeighbors));
                 }
+
+                // Report peers whose outbound queue is backing up
+                for (PeerInfo peer : neighbors.keySet()) {
+                    if (peer.getQueueDepth() >= process.outboundQueueCapacity) {
+                        process.writeToLog(String.format("has %d messages queued for %d (max %d)", peer.getQueueDepth(), peer.ID, peer.getMaxQueueDepth()));
+                    }
+                }
                 Thread.sleep(unchokeInterval * 1000);
             } catch (InterruptedException e) {
                 e.printStackTrace();
@@ -159,7 +222,7 @@ public class PreferredHandler extends Thread {
         }
     }
 
-    public class OptimisticHandler extends Thread {
+    public class OptimisticHandler implements Runnable {
 
         public void run() {
             while (true) {
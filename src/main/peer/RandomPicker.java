@@ -0,0 +1,34 @@
+package main.peer;
+
+import java.util.Random;
+
+import main.peer.peerProcess.PeerInfo;
+
+// Uniformly random piece among those the peer can supply
+public class RandomPicker implements PiecePicker {
+
+    private BitfieldObj local;
+    private RequestTracker requests;
+    private Random rand = new Random();
+
+    public RandomPicker(BitfieldObj local_, RequestTracker requests_) {
+        this.local = local_;
+        this.requests = requests_;
+    }
+
+    public int pick(PeerInfo peer) {
+        // Reservoir sample over the pieces the peer can supply, nothing is collected
+        int chosen = -1;
+        int seen = 0;
+        for (int i = local.nextWanted(peer.bf, 0); i != -1; i = local.nextWanted(peer.bf, i + 1)) {
+            if (requests.isClaimed(i)) {
+                continue;
+            }
+            seen++;
+            if (rand.nextInt(seen) == 0) {
+                chosen = i;
+            }
+        }
+        return chosen;
+    }
+}
@@ -0,0 +1,22 @@
+package main.peer;
+
+
+import main.peer.peerProcess.PeerInfo;
+
+// Rarest piece in the swarm that the peer can supply, see PieceAvailability
+public class RarestFirstPicker implements PiecePicker {
+
+    private BitfieldObj local;
+    private RequestTracker requests;
+    private PieceAvailability availability;
+
+    public RarestFirstPicker(BitfieldObj local_, RequestTracker requests_, PieceAvailability availability_) {
+        this.local = local_;
+        this.requests = requests_;
+        this.availability = availability_;
+    }
+
+    public int pick(PeerInfo peer) {
+        return availability.pickRarest(peer.bf, i -> PiecePicker.canRequest(peer, i, local, requests));
+    }
+}
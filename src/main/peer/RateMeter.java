@@ -0,0 +1,54 @@
+/*
+    Rate Meter
+
+    * Bytes moved in one direction with one peer, added from handler, writer and selector
+      threads through a LongAdder so they never contend
+    * tick() folds the bytes since the previous tick into an exponentially weighted moving
+      average, weighted by the time that passed, so a sample RateWindowSeconds old counts
+      about 1/e as much as a new one whatever the tick interval
+    * Only the PreferredHandler ticks, getRate() stays the same between ticks so sorting
+      by it is consistent
+
+*/
+
+package main.peer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class RateMeter {
+
+    private LongAdder total = new LongAdder(); // Never reset, ticks take the difference
+    private long windowMillis;
+    private long lastTotal = 0;
+    private long lastTick = System.nanoTime();
+    private volatile double rate = 0; // Bytes per second
+
+    public RateMeter(long windowMillis_) {
+        this.windowMillis = Math.max(1, windowMillis_);
+    }
+
+    public void add(long bytes) {
+        total.add(bytes);
+    }
+
+    // Fold the bytes since the last tick into the average, returns the new rate
+    public double tick() {
+        long now = System.nanoTime();
+        double elapsed = Math.max(1, (now - lastTick) / 1_000_000.0); // ms
+        long sum = total.sum();
+        double sample = (sum - lastTotal) * 1000.0 / elapsed;
+        double alpha = 1 - Math.exp(-elapsed / windowMillis);
+        rate += alpha * (sample - rate);
+        lastTotal = sum;
+        lastTick = now;
+        return rate;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+    Request Tracker
+
+    * Which peer each missing piece was requested from, indexed both ways:
+      by piece, one owner slot per piece in an AtomicIntegerArray, and by peer,
+      the piece -> request time map every PeerInfo keeps (inFlight)
+    * A claim is a CAS on the piece's slot, so handlers requesting different pieces
+      never contend and no lock is held while picking
+    * CHOKE and request timeouts only touch the requests of that one peer
+    * The claim outlives the request once the piece arrives and is released when the
+      DiskWriter stored it, so the piece is never requested twice meanwhile
+    * Pieces fetched as blocks are claimed for BLOCKS instead of a peer, the
+      BlockAssembler tracks which peer each block was requested from
+
+*/
+
+package main.peer;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import main.peer.peerProcess.PeerInfo;
+
+public class RequestTracker {
+
+    private static final int FREE = Integer.MIN_VALUE; // Peer IDs are never negative
+    public static final int BLOCKS = -1; // Owner of pieces assembled from blocks
+
+    private AtomicIntegerArray owner;
+
+    public RequestTracker(int pieceCount) {
+        this.owner = new AtomicIntegerArray(pieceCount);
+        for (int i = 0; i < pieceCount; i++) {
+            owner.set(i, FREE);
+        }
+    }
+
+    // Claim the piece for the peer, false if someone else holds it
+    public boolean claim(int piece, int peerID) {
+        return owner.compareAndSet(piece, FREE, peerID);
+    }
+
+    public boolean isClaimed(int piece) {
+        return owner.get(piece) != FREE;
+    }
+
+    // Release whoever holds the piece
+    public void release(int piece) {
+        owner.set(piece, FREE);
+    }
+
+    // Release the piece only if the peer still holds it
+    public boolean release(int piece, int peerID) {
+        return owner.compareAndSet(piece, peerID, FREE);
+    }
+
+    // Drop every outstanding request to the peer and the claims it holds for them
+    public int releaseAll(PeerInfo peer) {
+        int released = 0;
+        Iterator<Integer> it = peer.inFlight.keySet().iterator();
+        while (it.hasNext()) {
+            int piece = it.next();
+            it.remove();
+            release(piece, peer.ID);
+            released++;
+        }
+        return released;
+    }
+}
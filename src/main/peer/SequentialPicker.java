@@ -0,0 +1,31 @@
+package main.peer;
+
+
+import main.peer.peerProcess.PeerInfo;
+
+// Lowest missing piece the peer can supply, so the file fills in from the start
+public class SequentialPicker implements PiecePicker {
+
+    private BitfieldObj local;
+    private RequestTracker requests;
+    private int firstMissing = 0; // Every piece before this one is stored
+
+    public SequentialPicker(BitfieldObj local_, RequestTracker requests_) {
+        this.local = local_;
+        this.requests = requests_;
+    }
+
+    public int pick(PeerInfo peer) {
+        int first = local.nextClearBit(firstMissing);
+        if (first == -1) {
+            return -1;
+        }
+        firstMissing = first;
+        for (int i = local.nextWanted(peer.bf, firstMissing); i != -1; i = local.nextWanted(peer.bf, i + 1)) {
+            if (!requests.isClaimed(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
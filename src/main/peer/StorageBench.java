@@ -0,0 +1,70 @@
+/*
+    Storage benchmark for StorageMode
+
+    * Downloads a file of the given size into each storage backend piece by piece,
+      in random order like a swarm would, then serves random piece reads from the
+      completed file like a seeder answering REQUESTs
+    * Reports write time (including completion) and read throughput per backend
+    * Run: java -cp bin main.peer.StorageBench [fileMB] [pieceKB] [reads]
+
+*/
+
+package main.peer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+public class StorageBench {
+
+    public static void main(String[] args) throws Exception {
+        int fileSize = (args.length > 0 ? Integer.parseInt(args[0]) : 64) << 20;
+        int pieceSize = (args.length > 1 ? Integer.parseInt(args[1]) : 16) << 10;
+        int reads = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        int pieceCount = (int) Math.ceil((float) fileSize / pieceSize);
+
+        Random rnd = new Random(1);
+        byte[] content = new byte[pieceSize];
+        rnd.nextBytes(content);
+        ArrayList<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < pieceCount; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, rnd);
+
+        File dir = Files.createTempDirectory("storagebench").toFile();
+        for (String mode : new String[] {"par", "file", "mmap"}) {
+            File target = new File(dir, mode + ".bin");
+
+            long start = System.nanoTime();
+            TorrentFile tf = new TorrentFile(fileSize, pieceSize, target, new BitfieldObj(pieceCount), mode);
+            for (int i : order) {
+                byte[] data = content;
+                if (tf.getPieceLength(i) != pieceSize) {
+                    data = new byte[tf.getPieceLength(i)];
+                }
+                tf.writePieceToFile(tf.new PieceObj(i, data));
+            }
+            long writeMs = (System.nanoTime() - start) / 1000000;
+            if (!tf.isComplete() || target.length() != fileSize) {
+                throw new IllegalStateException(mode + " did not produce the complete file");
+            }
+
+            // Fresh instance, as a seeder started on the completed file
+            tf = new TorrentFile(fileSize, pieceSize, target, new BitfieldObj(pieceCount, true), mode);
+            start = System.nanoTime();
+            long bytes = 0;
+            for (int r = 0; r < reads; r++) {
+                bytes += tf.getPiece(rnd.nextInt(pieceCount)).getData().length;
+            }
+            long readNs = System.nanoTime() - start;
+
+            System.out.printf("mode=%s pieces=%d write=%dms reads=%d read=%dms (%.0f MB/s)\n",
+                    mode, pieceCount, writeMs, reads, readNs / 1000000, bytes / 1048576.0 / (readNs / 1e9));
+            target.delete();
+        }
+        dir.delete();
+    }
+}
@@ -1,23 +1,41 @@
 package main.peer;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.stream.IntStream;
 
 import main.peer.message.Piece;
 
 public class TorrentFile {
     public class PieceObj {
         private int index;
-        private byte[] data;
+        private byte[] data; // Null while a received piece is only in its pooled buffer
+        private ByteBuffer buffer; // Content from position to limit, see PieceBuffers
+        private boolean pooled; // buffer goes back to PieceBuffers once the piece is stored
 
         public PieceObj(int index, byte[] data) {
             this.index = index;
             this.data = data;
         }
 
+        // Received piece left in the pooled buffer it was read into
+        public PieceObj(int index, ByteBuffer buffer_) {
+            this(index, buffer_, true);
+        }
+
+        public PieceObj(int index, ByteBuffer buffer_, boolean pooled_) {
+            this.index = index;
+            this.buffer = buffer_;
+            this.pooled = pooled_;
+        }
+
         public PieceObj(Piece piece) {
             this.index = piece.getIndex();
             this.data = piece.getContent();
@@ -27,35 +45,137 @@ public class TorrentFile {
             return index;
         }
 
+        // Content as an array, copied out of a pooled buffer
         public byte[] getData() {
+            if (data == null) {
+                data = new byte[buffer.remaining()];
+                buffer.duplicate().get(data);
+            }
             return data;
         }
 
+        // Content without a copy, position and limit are the caller's own
+        public ByteBuffer getBuffer() {
+            return buffer != null ? buffer.duplicate() : ByteBuffer.wrap(data);
+        }
+
+        // Pooled buffer to hand back once the piece is stored, null if there is none
+        public ByteBuffer getPooledBuffer() {
+            return pooled ? buffer : null;
+        }
+
         public Piece getPieceMsg() {
-            return new Piece(index, data);
+            return data != null ? new Piece(index, data) : new Piece(index, buffer.duplicate());
         }
 
         // Testing
         public void printContent() {
-            System.out.println("Piece " + index + ", " + data.length + " bytes:");
+            byte[] content = getData();
+            System.out.println("Piece " + index + ", " + content.length + " bytes:");
             for (int i = 0; i < 20; i++) {
-                System.out.print(data[i] + " ");
+                System.out.print(content[i] + " ");
             }
             System.out.println();
         }
     }
 
+    // Part of a file holding a piece, sent with FileChannel.transferTo or received with
+    // FileChannel.transferFrom so the bytes never enter the heap
+    public static class PieceRegion {
+        private int index;
+        private int length;
+        private FileChannel channel;
+        private long position;
+        private long remaining;
+        private boolean closeAfter; // Channel opened only for this region (.par file)
+
+        PieceRegion(int index, FileChannel channel, long position, int length, boolean closeAfter) {
+            this.index = index;
+            this.length = length;
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+            this.closeAfter = closeAfter;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public boolean isDone() {
+            return remaining == 0;
+        }
+
+        // Transfer as much as the target accepts, returns bytes written
+        public long transferTo(WritableByteChannel target) throws IOException {
+            long n = channel.transferTo(position, remaining, target);
+            position += n;
+            remaining -= n;
+            if (remaining == 0) {
+                close();
+            }
+            return n;
+        }
+
+        // Part of this region, which must not be used afterwards (the channel moves along)
+        public PieceRegion block(int begin, int length_) {
+            return new PieceRegion(index, channel, position + begin, length_, closeAfter);
+        }
+
+        // Read the whole region into dst, which needs room for it
+        public void read(ByteBuffer dst) throws IOException {
+            while (remaining > 0) {
+                int n = channel.read(dst, position);
+                if (n < 0) {
+                    throw new EOFException("Piece " + index + " is shorter than expected");
+                }
+                position += n;
+                remaining -= n;
+            }
+            close();
+        }
+
+        // Receive as much as the source has available, returns bytes stored
+        public long transferFrom(ReadableByteChannel source) throws IOException {
+            long n = channel.transferFrom(source, position, remaining);
+            position += n;
+            remaining -= n;
+            if (remaining == 0) {
+                close();
+            }
+            return n;
+        }
+
+        public void close() {
+            if (closeAfter) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
     private int fileSize;
     private int pieceSize;
     private int pieceCount;
     private int lastPieceSize;
-    private boolean fileComplete;
+    private volatile boolean fileComplete;
 
     private File file;
-    private int parCount;
     private BitfieldObj bitfield;
+    private PieceStorage storage;
+    private PieceCache cache; // Optional, null when PieceCacheBytes is 0
+    private PieceJournal journal; // Only while downloading, null when JournalSyncMillis is 0
+    private String storageMode;
+    private PieceHashes hashes; // Optional, null without a hash file
 
-    public TorrentFile(int fileSize, int pieceSize, File file_, BitfieldObj bitfield_) {
+    public TorrentFile(int fileSize, int pieceSize, File file_, BitfieldObj bitfield_, String storageMode) {
         this.fileSize = fileSize;
         this.pieceSize = pieceSize;
         this.pieceCount = (int) Math.ceil((float) fileSize / pieceSize);
@@ -63,16 +183,38 @@ public class TorrentFile {
         this.file = file_;
         this.fileComplete = file_.length() == fileSize;
         this.bitfield = bitfield_;
-        this.parCount = 0;
+        this.storageMode = storageMode;
         if (!fileComplete) {
             file.delete();
         }
+        try {
+            this.storage = createStorage(storageMode);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open storage for " + file.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    public TorrentFile(int fileSize, int pieceSize, File file_, String storageMode) {
+        this(fileSize, pieceSize, file_, null, storageMode);
     }
 
     public TorrentFile(int fileSize, int pieceSize, File file_) {
-        this(fileSize, pieceSize, file_, null);
+        this(fileSize, pieceSize, file_, null, "par");
     }
 
+    private PieceStorage createStorage(String mode) throws IOException {
+        switch (mode) {
+            case "par":
+                return new ParStorage(this, file, fileComplete);
+            case "file":
+                return new FileStorage(this, file, fileComplete);
+            case "mmap":
+                return new MappedStorage(this, file, fileComplete);
+            default:
+                System.out.println("Unknown StorageMode " + mode + ", using file");
+                return new FileStorage(this, file, fileComplete);
+        }
+    }
 
     public boolean isComplete() {
         return fileComplete;
@@ -82,135 +224,234 @@ public class TorrentFile {
         return file;
     }
 
-    protected PieceObj getPieceFromFile(int index) {
-        // Check file is complete
-        if (!isComplete()) {
-            return null;
-        }
+    public int getFileSize() {
+        return fileSize;
+    }
 
-        int begin = index * pieceSize;
-        int length = pieceSize;
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    public int getPieceLength(int index) {
         if (index == pieceCount - 1 && lastPieceSize != 0) {
-            length = lastPieceSize;
+            return lastPieceSize;
         }
-        byte[] data = new byte[length];
+        return pieceSize;
+    }
 
-        // Read bytes from file
+    private boolean hasPiece(int index) {
+        return isComplete() || bitfield.checkBit(index);
+    }
+
+    // Locate a piece on disk for zero-copy sending, null if it is not available
+    public PieceRegion getPieceRegion(int index) {
+        if (!hasPiece(index)) {
+            return null;
+        }
         try {
-            FileInputStream fis = new FileInputStream(file);
-            fis.skip(begin);
-            fis.read(data);
-            fis.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+            return storage.region(index);
+        } catch (IOException e) {
+            System.out.println("Could not open Piece " + index + " for sending: " + e.getMessage());
         }
-        return new PieceObj(index, data);
+        return null;
     }
 
-    protected PieceObj getPieceFromPar(int index) {
-        if (bitfield.checkBit(index)) {
-            try {
-                FileInputStream fis = new FileInputStream(file.getPath()+"_"+index+".par");
-                int size = pieceSize;
-                if (index == pieceCount - 1 && lastPieceSize != 0) {
-                    size = lastPieceSize;
-                }
-                byte[] data = new byte[size];
-                fis.read(data);
-                fis.close();
-                return new PieceObj(index, data);
-            }
-            catch (FileNotFoundException e) {
-                System.out.println("Par file for Piece " + index + " not found");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    // Writable region of a missing piece, null if it cannot be opened
+    public PieceRegion getReceiveRegion(int index) {
+        if (hasPiece(index)) {
+            return null;
+        }
+        try {
+            return storage.receiveRegion(index);
+        } catch (IOException e) {
+            System.out.println("Could not open Piece " + index + " for receiving: " + e.getMessage());
         }
         return null;
     }
 
     public PieceObj getPiece(int index) {
-        if (isComplete() || file.exists()) {
-            return getPieceFromFile(index);
-        } else {
-            return getPieceFromPar(index);
+        if (!hasPiece(index)) {
+            return null;
+        }
+        if (cache != null) {
+            ByteBuffer cached = cache.get(index);
+            if (cached != null) {
+                return new PieceObj(index, cached, false);
+            }
+        }
+        try {
+            byte[] data = storage.read(index);
+            if (cache != null) {
+                cache.put(index, data);
+            }
+            return new PieceObj(index, data);
+        } catch (IOException e) {
+            System.out.println("Could not read Piece " + index + ": " + e.getMessage());
         }
+        return null;
     }
     
-    public void writePieceToFile(PieceObj pieceObj) {
-        // Check file is complete
-        if (isComplete()) {
+    // Content of part of a piece, only that range is read
+    public byte[] getBlock(int index, int begin, int length) {
+        if (cache != null && hasPiece(index)) {
+            ByteBuffer cached = cache.get(index);
+            if (cached != null) {
+                byte[] data = new byte[length];
+                cached.position(begin);
+                cached.get(data);
+                return data;
+            }
+        }
+        PieceRegion region = getPieceRegion(index);
+        if (region == null) {
+            return null;
+        }
+        PieceRegion block = region.block(begin, length);
+        try {
+            byte[] data = new byte[length];
+            block.read(ByteBuffer.wrap(data));
+            return data;
+        } catch (IOException e) {
+            block.close();
+            System.out.println("Could not read Piece " + index + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    public void writePieceToFile(PieceObj pieceObj) throws IOException {
+        writePiece(pieceObj);
+        pieceStored(pieceObj.getIndex());
+    }
+
+    // Store a piece without marking it in the bitfield, see pieceStored
+    public void writePiece(PieceObj pieceObj) throws IOException {
+        // Check file is complete or piece already written (duplicate response)
+        if (isComplete() || bitfield.checkBit(pieceObj.getIndex())) {
             return;
         }
         
-        // Write bytes to par file
+        storage.write(pieceObj.getIndex(), pieceObj.getBuffer());
+    }
+
+    // Flush stored pieces to the device, before they are marked complete
+    public void force() throws IOException {
         try {
-            FileOutputStream fos = new FileOutputStream(file.getPath()+"_"+pieceObj.index+".par", true);
-            fos.write(pieceObj.getData());
-            fos.close();
-            this.parCount++;
-            updateBitfield(pieceObj.getIndex());
+            storage.force();
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!isComplete()) {
+                throw e; // Otherwise the channel was closed as the file completed
+            }
         }
     }
     
+    // A piece in storage (writePiece or getReceiveRegion) is complete
+    public void pieceStored(int index) throws IOException {
+        if (isComplete() || bitfield.checkBit(index)) {
+            return;
+        }
+        updateBitfield(index);
+    }
+
     public void setBitfield(BitfieldObj bitfield_) {
         this.bitfield = bitfield_;
     }
 
+    public void setCache(PieceCache cache_) {
+        this.cache = cache_;
+    }
+
+    // Journal stored pieces from now on and set the ones an earlier run stored
+    // in the bitfield, returns the number of pieces restored
+    public int resume(int syncMillis) throws IOException {
+        if (isComplete()) {
+            return 0;
+        }
+        journal = new PieceJournal(new File(file.getPath() + ".journal"), fileSize, pieceSize, pieceCount, storageMode, storage, syncMillis);
+        int restored = journal.load(bitfield);
+        if (bitfield.isComplete()) {
+            completeFile(); // Stopped between the last write and the rename
+        }
+        return restored;
+    }
+
+    public void setHashes(PieceHashes hashes_) {
+        this.hashes = hashes_;
+    }
+
+    // Content matches the piece hash, always true without a hash file
+    public boolean verifyPiece(PieceObj pieceObj) {
+        return hashes == null || hashes.verify(pieceObj.getIndex(), pieceObj.getBuffer());
+    }
+
+    // Stored content matches the piece hash, scratch holds the piece while hashing
+    public boolean verifyStored(int index, ByteBuffer scratch) throws IOException {
+        if (hashes == null) {
+            return true;
+        }
+        scratch.clear();
+        storage.read(index, scratch);
+        scratch.flip();
+        return hashes.verify(index, scratch);
+    }
+
+    // Check every piece of a complete file on the fork-join pool, returns the number that do not match
+    public int verifyFile() {
+        if (hashes == null) {
+            return 0;
+        }
+        return (int) IntStream.range(0, pieceCount).parallel().filter(i -> !hashes.verify(i, readStored(i))).count();
+    }
+
+    // Hash every piece of a complete file on the fork-join pool
+    public PieceHashes computeHashes(String algorithm) throws NoSuchAlgorithmException {
+        PieceHashes computed = new PieceHashes(algorithm, fileSize, pieceSize, pieceCount);
+        IntStream.range(0, pieceCount).parallel().forEach(i -> computed.set(i, computed.digest(readStored(i))));
+        return computed;
+    }
+
+    // Read straight from storage, whole-file passes would only flush the cache
+    private byte[] readStored(int index) {
+        try {
+            return storage.read(index);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public PieceJournal getJournal() {
+        return journal;
+    }
+
     private void updateBitfield(int index) {
         if (bitfield == null) {
             throw new RuntimeException("Bitfield reference in torrent file is null");
         }
+        if (journal != null) {
+            journal.append(index);
+        }
         this.bitfield.setBit(index);
         if (bitfield.isComplete()) {
-            combineParFiles();
+            completeFile();
         }
     }
     
-    public void combineParFiles() {
+    private synchronized void completeFile() {
         if (isComplete()) {
             return;
         }
         
         try {
-            FileOutputStream fos = new FileOutputStream(file);
-            for (int i = 0; i < pieceCount; i++) {
-                File f = new File(file.getPath()+"_"+i+".par");
-                FileInputStream fis = new FileInputStream(f);
-                int size = pieceSize;
-                if (i == pieceCount - 1 && lastPieceSize != 0) {
-                    size = lastPieceSize;
-                }
-                byte[] data = new byte[size];
-                fis.read(data);
-                fos.write(data);
-                fis.close();
-                f.delete();
-            }
-            fos.close();
+            storage.complete();
             this.fileComplete = true;
-        } catch (Exception e) {
+            if (journal != null) {
+                journal.delete();
+            }
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
-    
-        public static void main(String args[]) {
-            
-            File file = new File("peer_1001/tree.jpg");
-            TorrentFile torrentFile = new TorrentFile(24301474, 16384, file);
-            torrentFile.setBitfield(new BitfieldObj(torrentFile.pieceCount, true));
-            
-            File file2 = new File("peer_1002/tree.jpg");
-            TorrentFile tf2 = new TorrentFile(24301474, 16384, file2);
-            tf2.setBitfield(new BitfieldObj(torrentFile.pieceCount));
-
-            tf2.combineParFiles();
-
-            // PieceObj pieceObj = torrentFile.getPiece(132);
-            // tf2.writePieceToFile(pieceObj);
-            // PieceObj po = tf2.getPiece(132);
-            // po.printContent();
-        }
 }
@@ -0,0 +1,70 @@
+/*
+    Block Message
+        Part of a piece, the answer to a Block Request (extension, see Handshake)
+    * Payload: 4-byte piece index, 4-byte offset in the piece, block content
+*/
+
+package main.peer.message;
+
+public class Block extends Message {
+
+    private int index;
+    private int begin;
+    private byte[] content;
+
+    public Block(int index, int begin, byte[] content) {
+        super(Message.BLOCK, null);
+        this.index = index;
+        this.begin = begin;
+        this.content = content;
+    }
+
+    // Fields of a received Block without creating one
+    public static int index(Message msg) {
+        return msg.getPayloadInt(0);
+    }
+
+    public static int begin(Message msg) {
+        return msg.getPayloadInt(4);
+    }
+
+    public static int contentLength(Message msg) {
+        return msg.getLength() - 9;
+    }
+
+    // Length, type, index and offset preceding the content of a block message
+    public static byte[] getHeader(int index, int begin, int contentLength) {
+        byte[] header = new byte[13];
+        Message.putInt(header, 0, 9 + contentLength);
+        header[4] = Message.BLOCK;
+        Message.putInt(header, 5, index);
+        Message.putInt(header, 9, begin);
+        return header;
+    }
+
+    public byte[] getMessage() {
+        byte[] frame = new byte[13 + content.length];
+        Message.putInt(frame, 0, 9 + content.length);
+        frame[4] = Message.BLOCK;
+        Message.putInt(frame, 5, index);
+        Message.putInt(frame, 9, begin);
+        System.arraycopy(content, 0, frame, 13, content.length);
+        return frame;
+    }
+
+    public int getLength() {
+        return 9 + content.length;
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+
+    public int getBegin() {
+        return this.begin;
+    }
+
+    public byte[] getContent() {
+        return this.content;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+    Block Request Message
+        Asks for part of a piece (extension, see Handshake)
+    * Payload: 4-byte piece index, 4-byte offset in the piece, 4-byte length
+*/
+
+package main.peer.message;
+
+public class BlockRequest extends Message {
+
+    private int index;
+    private int begin;
+    private int length;
+
+    public BlockRequest(int index, int begin, int length) {
+        super(Message.BLOCK_REQUEST, null);
+        this.index = index;
+        this.begin = begin;
+        this.length = length;
+        byte[] payload = new byte[12];
+        Message.putInt(payload, 0, index);
+        Message.putInt(payload, 4, begin);
+        Message.putInt(payload, 8, length);
+        this.setPayload(payload);
+    }
+
+    // Fields of a received Block Request without creating one
+    public static int index(Message msg) {
+        return msg.getPayloadInt(0);
+    }
+
+    public static int begin(Message msg) {
+        return msg.getPayloadInt(4);
+    }
+
+    public static int length(Message msg) {
+        return msg.getPayloadInt(8);
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+
+    public int getBegin() {
+        return this.begin;
+    }
+
+    public int getBlockLength() {
+        return this.length;
+    }
+}
@@ -0,0 +1,31 @@
+package main.peer.message;
+
+import main.Utils;
+
+public class Cancel extends Message {
+    
+    private int index;
+
+    public Cancel(int index) {
+        super(Message.CANCEL, Utils.intToByteArray(index));
+        this.index = index;
+    }
+
+    public Cancel(Message msg) {
+        super(msg);
+        this.index = msg.getPayloadInt(0);
+    }
+
+    // Index of a received Cancel without creating one
+    public static int index(Message msg) {
+        return msg.getPayloadInt(0);
+    }
+
+    public byte[] getMessage() {
+        return Message.frame(Message.CANCEL, index);
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+}
@@ -2,7 +2,7 @@
     Handshake Message
         Establishes connection between peers (Hi I'm peer 1001)
     * 18-byte Handshake Header ('P2PFILESHARINGPROJ')
-    * 10-byte zero bits
+    * 10-byte zero bits, the last byte carries extension flags
     * 4-byte peer ID
 
 */
@@ -16,10 +16,23 @@ import main.Utils;
 
 public class Handshake {
     private static String HEADER = "P2PFILESHARINGPROJ";
+    private static final int EXTENSIONS_OFFSET = 27;
+
+    // Extension flags
+    public static final byte EXT_MULTI_HAVE = 0x01;
+    public static final byte EXT_BLOCKS = 0x02; // Block Request and Block messages
+    public static final byte EXT_CANCEL = 0x04; // Cancel (and with EXT_BLOCKS Block Cancel) for requests no longer needed
+
     private int peerID;
+    private byte extensions;
 
     public Handshake(int ID) {
+        this(ID, (byte) 0);
+    }
+
+    public Handshake(int ID, byte extensions_) {
         this.peerID = ID;
+        this.extensions = extensions_;
     }
 
     public byte[] getMessage() {
@@ -28,6 +41,7 @@ public class Handshake {
         
         byte[] zeros = new byte[10];
         Arrays.fill(zeros, (byte) 0);
+        zeros[EXTENSIONS_OFFSET-18] = extensions;
         outBytes.write(zeros, 0, 10);
         outBytes.write(Utils.intToByteArray(peerID), 0, 4);
 
@@ -43,14 +57,20 @@ public class Handshake {
             return -1;
         }
 
-        for (int i = 0; i < 10; i++) {
+        for (int i = 0; i < 9; i++) {
             if (inBytes.read() != 0) {
                 return -1;
             }
         }
+        inBytes.read(); // Extension flags
 
         byte[] id = new byte[4];
         inBytes.read(id, 0, 4);
         return Utils.byteArrayToInt(id);
     }
+
+    // Extension flags advertised in a valid handshake
+    public static byte getExtensions(byte[] msg) {
+        return msg[EXTENSIONS_OFFSET];
+    }
 }
@@ -13,7 +13,16 @@ public class Have extends Message {
 
     public Have(Message msg) {
         super(msg);
-        this.index = Utils.byteArrayToInt(msg.getPayload());
+        this.index = msg.getPayloadInt(0);
+    }
+
+    // Index of a received Have without creating one
+    public static int index(Message msg) {
+        return msg.getPayloadInt(0);
+    }
+
+    public byte[] getMessage() {
+        return Message.frame(Message.HAVE, index);
     }
 
     public int getIndex() {
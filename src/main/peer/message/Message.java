@@ -10,18 +10,26 @@
     * Bitfield
     * Request
     * Piece
+    * Multi Have (extension)
+    * Cancel
+    * Block Request (extension)
+    * Block (extension)
+    * Block Cancel (extension)
 
     Structure:
     * 4-byte Message Length
     * 1-byte message type
     * Variable size message payload
+
+    Received messages are one reusable Message per connection pointed at a pooled
+    payload buffer (reset), valid only while the message is being handled. Typed
+    messages offer static accessors (Have.index, Request.index, ...) that read
+    straight from it, constructing the typed message copies what it needs.
 */
 
 package main.peer.message;
 
-import java.io.ByteArrayOutputStream;
-
-import main.Utils;
+import java.nio.ByteBuffer;
 
 public class Message {
 
@@ -34,11 +42,22 @@ public class Message {
     public static final byte BITFIELD = 5;
     public static final byte REQUEST = 6;
     public static final byte PIECE = 7;
+    public static final byte MULTI_HAVE = 8;
+    public static final byte CANCEL = 9;
+    public static final byte BLOCK_REQUEST = 10;
+    public static final byte BLOCK = 11;
+    public static final byte BLOCK_CANCEL = 12;
 
     // Message structure
     private int length;
     private byte type;
     private byte[] payload;
+    private ByteBuffer buffer; // Received payload, used instead of payload until copied
+
+    // Frames of the messages without payload, shared, never modify
+    private static final byte[][] EMPTY_FRAMES = {
+        frame(CHOKE), frame(UNCHOKE), frame(INTERESTED), frame(NOTINTERESTED)
+    };
 
     // Constructor
     public Message(byte type_, byte[] payload_) {
@@ -56,6 +75,21 @@ public class Message {
         this.length = m.length;
         this.type = m.type;
         this.payload = m.payload;
+        this.buffer = m.buffer;
+    }
+
+    // Reusable message for a receive loop, see reset
+    public Message() {
+        this.length = 1;
+    }
+
+    // Point at the next received message, payload (position to limit) is only read
+    // until the next reset, null when there is none
+    public void reset(byte type_, ByteBuffer payload_) {
+        this.type = type_;
+        this.buffer = payload_;
+        this.payload = null;
+        this.length = 1 + (payload_ == null ? 0 : payload_.remaining());
     }
 
     public byte getType() {
@@ -67,12 +101,61 @@ public class Message {
         return this.length;
     }
     
+    // Take over the received payload buffer, the receive loop then leaves releasing it
+    // to the caller, null if there is none. Read everything needed from the message first.
+    public ByteBuffer takePayload() {
+        ByteBuffer taken = this.buffer;
+        this.buffer = null;
+        return taken;
+    }
+
+    // Whether buf is still this message's payload, i.e. was not taken
+    public boolean holds(ByteBuffer buf) {
+        return this.buffer == buf;
+    }
+
+    // Payload as an array, copied out of a received buffer on first use
     public byte[] getPayload() {
+        if (this.payload == null && this.buffer != null) {
+            this.payload = new byte[buffer.remaining()];
+            buffer.duplicate().get(this.payload);
+        }
         return this.payload;
     }
+
+    // Big-endian int at offset in the payload, without copying it
+    public int getPayloadInt(int offset) {
+        if (this.buffer != null) {
+            return buffer.getInt(buffer.position() + offset);
+        }
+        return (payload[offset] & 0xff) << 24 | (payload[offset+1] & 0xff) << 16 | (payload[offset+2] & 0xff) << 8 | (payload[offset+3] & 0xff);
+    }
+
+    // Copy part of the payload into dst
+    public void copyPayload(int offset, ByteBuffer dst, int len) {
+        if (this.buffer != null) {
+            ByteBuffer src = buffer.duplicate();
+            src.position(buffer.position() + offset);
+            src.limit(src.position() + len);
+            dst.put(src);
+        } else {
+            dst.put(payload, offset, len);
+        }
+    }
+
+    public void copyPayload(int offset, byte[] dst, int dstOffset, int len) {
+        if (this.buffer != null) {
+            ByteBuffer src = buffer.duplicate();
+            src.position(buffer.position() + offset);
+            src.get(dst, dstOffset, len);
+        } else {
+            System.arraycopy(payload, offset, dst, dstOffset, len);
+        }
+    }
     
     protected void setPayload(byte[] b) {
         this.payload = b;
+        this.buffer = null;
         this.length = 1 + b.length;
     }
     
@@ -80,14 +163,40 @@ public class Message {
         if (this.length == 0) {
             return new byte[]{};
         }
-        ByteArrayOutputStream b_out = new ByteArrayOutputStream(this.length+4);
-        b_out.writeBytes(Utils.intToByteArray(this.length));
-        b_out.write(this.type);
-        if (this.payload != null) {
-            b_out.write(this.payload, 0, this.payload.length);
+        if (this.length == 1 && type >= 0 && type < EMPTY_FRAMES.length) {
+            return EMPTY_FRAMES[type];
+        }
+        byte[] frame = new byte[4 + this.length];
+        putInt(frame, 0, this.length);
+        frame[4] = this.type;
+        if (this.length > 1) {
+            copyPayload(0, frame, 5, this.length - 1);
         }
+        return frame;
+    }
+
+    // Frame of a message with no payload
+    private static byte[] frame(byte type) {
+        byte[] frame = new byte[5];
+        putInt(frame, 0, 1);
+        frame[4] = type;
+        return frame;
+    }
+
+    // Frame of a message whose payload is one int (Have, Request, Cancel)
+    public static byte[] frame(byte type, int value) {
+        byte[] frame = new byte[9];
+        putInt(frame, 0, 5);
+        frame[4] = type;
+        putInt(frame, 5, value);
+        return frame;
+    }
 
-        return b_out.toByteArray();
+    public static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset+1] = (byte) (value >>> 16);
+        b[offset+2] = (byte) (value >>> 8);
+        b[offset+3] = (byte) value;
     }
     
 }
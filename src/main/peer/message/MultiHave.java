@@ -0,0 +1,47 @@
+/*
+    Multi Have Message
+        Announces several newly downloaded pieces at once (extension, see Handshake)
+    * Payload: sequence of 4-byte piece indices
+*/
+
+package main.peer.message;
+
+import java.util.List;
+
+public class MultiHave extends Message {
+
+    private int[] indices;
+
+    public MultiHave(List<Integer> indices_) {
+        super(Message.MULTI_HAVE, null);
+        this.indices = new int[indices_.size()];
+        byte[] payload = new byte[4*indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = indices_.get(i);
+            Message.putInt(payload, 4*i, indices[i]);
+        }
+        this.setPayload(payload);
+    }
+
+    public MultiHave(Message msg) {
+        super(msg);
+        this.indices = new int[count(msg)];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = index(msg, i);
+        }
+    }
+
+    // Number of pieces in a received Multi Have
+    public static int count(Message msg) {
+        return (msg.getLength() - 1) / 4;
+    }
+
+    // i-th piece of a received Multi Have without creating one
+    public static int index(Message msg, int i) {
+        return msg.getPayloadInt(4 * i);
+    }
+
+    public int[] getIndices() {
+        return this.indices;
+    }
+}
@@ -1,48 +1,79 @@
 package main.peer.message;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-
-import main.Utils;
+import java.nio.ByteBuffer;
 
 public class Piece extends Message {
 
     private int index;
-    private byte[] content;
+    private byte[] content; // Null while the content is only in buffer
+    private ByteBuffer buffer; // Content from position to limit, e.g. a cached piece
     
     public Piece(int index, byte[] content) {
         super(Message.PIECE, null);
         this.index = index;
         this.content = content;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(4+content.length);
-        baos.write(Utils.intToByteArray(index), 0, 4);
-        baos.write(content, 0, content.length);
-        this.setPayload(baos.toByteArray());
     }
 
+    // Content is copied straight into the frame when it is sent
+    public Piece(int index, ByteBuffer buffer_) {
+        super(Message.PIECE, null);
+        this.index = index;
+        this.buffer = buffer_;
+    }
+
+    // Copies the content out of the received payload, the one copy a piece needs
     public Piece(Message msg) {
-        super(msg);
+        super(msg.getType(), null);
+        this.index = msg.getPayloadInt(0);
         this.content = new byte[msg.getLength()-5];
-        ByteArrayInputStream bais = new ByteArrayInputStream(msg.getPayload());
-        try {
-            this.index = Utils.byteArrayToInt(bais.readNBytes(4));
-            if (bais.available() == msg.getLength()-5) {
-                bais.readNBytes(this.content, 0, bais.available());
-            }
-            else {
-                throw new IOException("Invalid payload length");
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        msg.copyPayload(4, content, 0, content.length);
+    }
+
+    // Index of a received piece without creating one
+    public static int index(Message msg) {
+        return msg.getPayloadInt(0);
+    }
+
+    // 4-byte length, type and 4-byte index preceding the content of a piece message
+    public static byte[] getHeader(int index, int contentLength) {
+        byte[] header = Message.frame(Message.PIECE, index);
+        Message.putInt(header, 0, 5 + contentLength);
+        return header;
+    }
+
+    // Framed straight from index and content, there is no separate payload array
+    public byte[] getMessage() {
+        int length = getContentLength();
+        byte[] frame = new byte[9 + length];
+        Message.putInt(frame, 0, 5 + length);
+        frame[4] = Message.PIECE;
+        Message.putInt(frame, 5, index);
+        if (content != null) {
+            System.arraycopy(content, 0, frame, 9, length);
+        } else {
+            buffer.duplicate().get(frame, 9, length);
         }
+        return frame;
+    }
+
+    public int getLength() {
+        return 5 + getContentLength();
+    }
+
+    public int getContentLength() {
+        return content != null ? content.length : buffer.remaining();
     }
 
     public int getIndex() {
         return this.index;
     }
 
+    // Content as an array, copied out of the buffer
     public byte[] getContent() {
+        if (content == null) {
+            content = new byte[buffer.remaining()];
+            buffer.duplicate().get(content);
+        }
         return this.content;
     }
 
@@ -13,7 +13,16 @@ public class Request extends Message {
 
     public Request(Message msg) {
         super(msg);
-        this.index = Utils.byteArrayToInt(msg.getPayload());
+        this.index = msg.getPayloadInt(0);
+    }
+
+    // Index of a received Request without creating one
+    public static int index(Message msg) {
+        return msg.getPayloadInt(0);
+    }
+
+    public byte[] getMessage() {
+        return Message.frame(Message.REQUEST, index);
     }
 
     public int getIndex() {
@@ -20,12 +20,16 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.prefs.PreferencesFactory;
 
+import main.Utils;
 import main.peer.PreferredHandler.OptimisticHandler;
-import main.peer.TorrentFile.PieceObj;
 import main.peer.message.*;
 
 import java.io.DataInputStream;
@@ -35,9 +39,13 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 
 public class peerProcess {
@@ -55,9 +63,39 @@ public class peerProcess {
     
     private int pieceCount;
     private int lastPieceSize;
+
+    private String transportMode = "blocking"; // blocking: thread per peer, nio: single selector thread
+    private String executionMode = "platform"; // platform: Thread per task, virtual: shared virtual thread executor
+    private int requestPipelineDepth = 5; // Outstanding requests per unchoked peer, 0 adapts to measured RTT
+    private static final int MAX_PIPELINE_DEPTH = 64;
+    private int blockSize = 16384; // Piece part per Block Request, 0 requests whole pieces
+    private boolean zeroCopySend = true; // Serve REQUESTs with FileChannel.transferTo
+    private Boolean zeroCopyReceive = null; // Store PIECEs with FileChannel.transferFrom (nio only), null: only when not verifying
+    protected int outboundQueueCapacity = 16; // Pieces waiting per peer before senders block
+    private int writeCoalesceBytes = 16384; // Flush batched control messages at this size
+    private int writeCoalesceMillis = 0; // or after this long
+    private int haveBatchMillis = 50; // Collect Have announcements this long, 0 sends each immediately
+    private boolean advertiseExtensions = true; // Disable to talk to peers that require zeroed handshake bytes
+    private HaveBroadcaster haveBroadcaster;
+    private DiskWriter diskWriter;
+    private int diskQueueCapacity = 64;
+    private int diskWriterThreads = 2;
+    private int pieceBufferCount = 0; // 0: DiskQueueCapacity + DiskWriterThreads + 16 for pieces still arriving
+    private int journalSyncMillis = 1000;
+    private boolean verifyPieces = true;
+    private String pieceHashAlgorithm = "SHA-1";
+    private String piecePicker = "endgame"; // random, rarest, sequential or endgame
+    private int endgameDuplicates = 0; // Peers asked for the same piece in endgame, 0 for all
+    private AtomicBoolean endgame = new AtomicBoolean(false);
+    private String storageMode = "file";
+    private long pieceCacheBytes = 8 << 20;
+    private int rateWindowMillis = 20000; // Age at which a transfer rate sample has decayed to 1/e
+    private int requestTimeoutMillis = 10000; // Deadline before the peer's latency is known, and its upper bound
+    private static final long MIN_REQUEST_TIMEOUT = 500;
+    private ExecutorService executor;
     
     
-    private BitfieldObj bitfield;
+    private ConcurrentBitfield bitfield; // Local pieces, shared by every handler without a lock
     private List<PeerInfo> priorPeers = Collections.synchronizedList(new ArrayList<PeerInfo>());
     public int maxPeers;
     private int numFinished;
@@ -68,8 +106,13 @@ public class peerProcess {
     public boolean waiting = false;
     
     private TorrentFile torrentFile;
-    protected Map<Integer, Integer> requestedPieces = Collections.synchronizedMap(new HashMap<Integer, Integer>());
+    protected RequestTracker requests; // Which peer each missing piece was requested from
+    protected PieceAvailability availability; // Swarm copies of each missing piece, for rarest-first
+    protected PiecePicker picker;
     protected PreferredHandler preferredHandler;
+    protected BufferPool buffers; // Received message payloads, returned once the message is handled
+    protected PieceBuffers pieceBuffers; // Received piece payloads, returned by the DiskWriter
+    protected BlockAssembler blocks; // Pieces fetched as blocks, null when BlockSize is off
     protected Scanner scanner = new Scanner(System.in);
 
     public void writeToLog(String msg) {
@@ -100,13 +143,33 @@ public class peerProcess {
         public DataInputStream in;
         public DataOutputStream out;
         public Socket connection;
+        public NioTransport.Connection nio;
+        public PeerWriter writer; // Outbound queue for the blocking transport
 
         public boolean isChoking = true;
         public boolean isChokedby = true;
         public boolean isInterested = false;
-        public int downloadRate = 0;
+        public volatile boolean amInterested = false; // Our last Interested/Not Interested sent to this peer
+        private ReentrantLock interestLock = new ReentrantLock(); // Held while changing and sending amInterested
+        public RateMeter download = new RateMeter(rateWindowMillis); // Piece content received from this peer
+        public RateMeter upload = new RateMeter(rateWindowMillis); // Piece content sent to it
+        public boolean multiHave = false; // Peer advertised the Multi Have extension
+        public boolean blocks = false; // Both sides use Block Requests, see BlockAssembler
+        public boolean cancel = false; // Peer advertised the Cancel extension
+        final ArrayList<Integer> pendingHaves = new ArrayList<Integer>(); // Waiting for the next HaveBroadcaster flush
 
-        ArrayList<Integer> wantedPieces = new ArrayList<Integer>();
+        // Outstanding requests to this peer: piece index -> time requested (ms)
+        Map<Integer, Long> inFlight = new ConcurrentHashMap<Integer, Long>();
+        // Outstanding block requests: block (BlockAssembler numbering) -> time requested (ms)
+        Map<Integer, Long> blocksInFlight = new ConcurrentHashMap<Integer, Long>();
+        double rttEwma = 0; // Request to piece latency (ms)
+        double intervalEwma = 0; // Time between pieces arriving while requests are outstanding (ms)
+        long lastPieceTime = 0;
+        public AtomicInteger timeouts = new AtomicInteger(); // Expired requests, decays every unchoking interval
+        private Handler handler;
+        // fillRequestPipeline calls not yet served, the thread that takes it from 0 fills
+        // for every caller that arrives meanwhile so one peer is never filled concurrently
+        private AtomicInteger refills = new AtomicInteger();
 
 
         public PeerInfo(String[] info) {
@@ -120,6 +183,48 @@ public class peerProcess {
 
         public PeerInfo() {}
 
+        // Update latency estimates when a requested piece arrives
+        void recordPiece(int index) {
+            recordArrival(inFlight, index);
+        }
+
+        // Same for a block, the estimates are then in blocks
+        void recordBlock(int block) {
+            recordArrival(blocksInFlight, block);
+        }
+
+        private void recordArrival(Map<Integer, Long> outstanding, int key) {
+            long now = System.currentTimeMillis();
+            Long requested = outstanding.remove(key);
+            if (requested == null) {
+                return;
+            }
+            double rtt = now - requested;
+            rttEwma = rttEwma == 0 ? rtt : 0.8 * rttEwma + 0.2 * rtt;
+            if (lastPieceTime != 0) {
+                double interval = Math.min(now - lastPieceTime, rtt);
+                intervalEwma = intervalEwma == 0 ? interval : 0.8 * intervalEwma + 0.2 * interval;
+            }
+            lastPieceTime = outstanding.isEmpty() ? 0 : now;
+        }
+
+        // Time a request may stay unanswered, from the observed latency of this peer
+        long requestTimeout() {
+            if (rttEwma == 0) {
+                return requestTimeoutMillis;
+            }
+            return Math.max(MIN_REQUEST_TIMEOUT, Math.min(requestTimeoutMillis, (long) (4 * rttEwma)));
+        }
+
+        // Requests needed to keep the link busy for one round trip
+        int adaptiveDepth() {
+            if (rttEwma == 0 || intervalEwma == 0) {
+                return 2;
+            }
+            int depth = 1 + (int) Math.ceil(rttEwma / Math.max(intervalEwma, 1));
+            return Math.min(depth, MAX_PIPELINE_DEPTH);
+        }
+
         protected void finalize() {
             try {
                 if (connection != null) {
@@ -138,11 +243,14 @@ public class peerProcess {
         public void establishConnection() {
             try {
                 if (connection == null) {
+                    // Plain socket, adaptors of SocketChannel serialize reads and writes on JDK 11
                     this.connection = new Socket(this.hostname, this.port);
                 }
                 this.out = new DataOutputStream(this.connection.getOutputStream());
                 this.out.flush();
                 this.in = new DataInputStream(this.connection.getInputStream());
+                this.writer = new PeerWriter(out, connection.getChannel(), outboundQueueCapacity, writeCoalesceBytes, writeCoalesceMillis);
+                execute(writer);
             } catch (IOException e) {
                 System.out.println("Error establishing connection with peer " + ID);
                 this.connection = null;
@@ -155,27 +263,91 @@ public class peerProcess {
         }
 
         public void sendMessage(Message m) {
-            try {
-                out.write(m.getMessage());
-            } catch (IOException e) {
-                System.out.println("Connection Error: Could not send message to peer "+ID);
+            if (m instanceof Piece) {
+                upload.add(((Piece) m).getContentLength());
+            } else if (m instanceof Block) {
+                upload.add(((Block) m).getContent().length);
+            }
+            if (m instanceof Piece && writer != null) {
+                writer.sendPiece(((Piece) m).getIndex(), m.getMessage());
+                return;
+            }
+            if (m instanceof Block && writer != null) {
+                writer.sendPiece(((Block) m).getIndex(), m.getMessage()); // Counts against OutboundQueueCapacity like pieces
+                return;
             }
+            sendMessage(m.getMessage());
         }
 
         public void sendMessage(Handshake h) {
-            try {
-                out.write(h.getMessage());
-            } catch (IOException e) {
-                System.out.println("Connection Error: Could not send message to peer " + ID);
-            }
+            sendMessage(h.getMessage());
         }
 
         public void sendMessage(byte[] b) {
-            try {
-                out.write(b);
-            } catch (IOException e) {
+            if (nio != null) {
+                nio.send(b);
+            } else if (writer != null) {
+                writer.send(b);
+            } else {
                 System.out.println("Connection Error: Could not send message to peer " + ID);
-            }         
+            }
+        }
+
+        // Send a piece message, moving the content from file to socket without heap copies
+        public void sendPiece(TorrentFile.PieceRegion region) {
+            sendRegion(Piece.getHeader(region.getIndex(), region.getLength()), region);
+        }
+
+        // Send a message header followed by file content (piece or block)
+        public void sendRegion(byte[] header, TorrentFile.PieceRegion region) {
+            upload.add(region.getLength());
+            if (nio != null) {
+                nio.send(header, region);
+            } else if (writer != null) {
+                writer.sendPiece(header, region);
+            } else {
+                region.close();
+                System.out.println("Connection Error: Could not send piece to peer " + ID);
+            }
+        }
+
+        // Withdraw a piece response that has not been sent yet
+        public boolean cancelPiece(int index) {
+            if (nio != null) {
+                return nio.cancelPiece(index);
+            } else if (writer != null) {
+                return writer.cancelPiece(index);
+            }
+            return false;
+        }
+
+        // Withdraw a block response that has not been sent yet
+        public boolean cancelBlock(int index, int begin) {
+            if (nio != null) {
+                return nio.cancelBlock(index, begin);
+            } else if (writer != null) {
+                return writer.cancelBlock(index, begin);
+            }
+            return false;
+        }
+
+        // Messages waiting in this peer's outbound queue
+        public int getQueueDepth() {
+            if (nio != null) {
+                return nio.getQueueDepth();
+            } else if (writer != null) {
+                return writer.getQueueDepth();
+            }
+            return 0;
+        }
+
+        public int getMaxQueueDepth() {
+            if (nio != null) {
+                return nio.getMaxQueueDepth();
+            } else if (writer != null) {
+                return writer.getMaxQueueDepth();
+            }
+            return 0;
         }
     }
 
@@ -209,6 +381,75 @@ public class peerProcess {
                     case "PieceSize":
                         this.pieceSize = reader.nextInt();
                         break;
+                    case "TransportMode":
+                        this.transportMode = reader.next();
+                        break;
+                    case "ExecutionMode":
+                        this.executionMode = reader.next();
+                        break;
+                    case "BlockSize":
+                        this.blockSize = reader.nextInt();
+                        break;
+                    case "RequestPipelineDepth":
+                        this.requestPipelineDepth = reader.nextInt();
+                        break;
+                    case "ZeroCopySend":
+                        this.zeroCopySend = reader.nextBoolean();
+                        break;
+                    case "ZeroCopyReceive":
+                        this.zeroCopyReceive = reader.nextBoolean();
+                        break;
+                    case "OutboundQueueCapacity":
+                        this.outboundQueueCapacity = reader.nextInt();
+                        break;
+                    case "WriteCoalesceBytes":
+                        this.writeCoalesceBytes = reader.nextInt();
+                        break;
+                    case "WriteCoalesceMillis":
+                        this.writeCoalesceMillis = reader.nextInt();
+                        break;
+                    case "HaveBatchMillis":
+                        this.haveBatchMillis = reader.nextInt();
+                        break;
+                    case "AdvertiseExtensions":
+                        this.advertiseExtensions = reader.nextBoolean();
+                        break;
+                    case "PiecePicker":
+                        this.piecePicker = reader.next();
+                        break;
+                    case "EndgameDuplicates":
+                        this.endgameDuplicates = reader.nextInt();
+                        break;
+                    case "StorageMode":
+                        this.storageMode = reader.next();
+                        break;
+                    case "PieceCacheBytes":
+                        this.pieceCacheBytes = reader.nextLong();
+                        break;
+                    case "DiskQueueCapacity":
+                        this.diskQueueCapacity = reader.nextInt();
+                        break;
+                    case "DiskWriterThreads":
+                        this.diskWriterThreads = reader.nextInt();
+                        break;
+                    case "PieceBuffers":
+                        this.pieceBufferCount = reader.nextInt();
+                        break;
+                    case "JournalSyncMillis":
+                        this.journalSyncMillis = reader.nextInt();
+                        break;
+                    case "VerifyPieces":
+                        this.verifyPieces = reader.nextBoolean();
+                        break;
+                    case "PieceHashAlgorithm":
+                        this.pieceHashAlgorithm = reader.next();
+                        break;
+                    case "RequestTimeoutMillis":
+                        this.requestTimeoutMillis = reader.nextInt();
+                        break;
+                    case "RateWindowSeconds":
+                        this.rateWindowMillis = reader.nextInt() * 1000;
+                        break;
                     default:
                         break;
                 }
@@ -227,14 +468,53 @@ public class peerProcess {
             pieceCount = (int) Math.ceil((float) this.fileSize / this.pieceSize); // Number of pieces
             lastPieceSize = this.fileSize % this.pieceSize; // Find remainder size of last piece
         }
+        buffers = new BufferPool(this.pieceSize + 4, 16, false); // Largest payload is a piece and its index
+        if (zeroCopyReceive == null) {
+            zeroCopyReceive = !verifyPieces; // Verifying reads every piece stored this way back from disk
+        }
+        if (pieceBufferCount <= 0) {
+            pieceBufferCount = diskQueueCapacity + diskWriterThreads + 16;
+        }
+        // The nio transport reads straight from the socket channel, blocking streams need arrays
+        pieceBuffers = new PieceBuffers(this.pieceSize, pieceBufferCount, transportMode.equals("nio"));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> writeToLog("has " + pieceBuffers)));
         
         // Read peer cfg
         readPeerInfo();
+        availability = new PieceAvailability(pieceCount, bitfield);
+        requests = new RequestTracker(pieceCount);
+        if (useBlocks()) {
+            blocks = new BlockAssembler(torrentFile, pieceBuffers, blockSize);
+        }
+        picker = createPicker();
         preferredHandler = new PreferredHandler(null, this, this.numPreferredNeighbors, this.unchokingInterval, this.optimisticUnchokingInterval, this.bitfield.isComplete());
-        preferredHandler.start();
-        preferredHandler.new OptimisticHandler().start();
+        execute(preferredHandler);
+        execute(preferredHandler.new OptimisticHandler());
+        execute(new RequestSweeper());
+        diskWriter = new DiskWriter(this, torrentFile, pieceBuffers, diskQueueCapacity);
+        diskWriter.start(diskWriterThreads);
+        haveBroadcaster = new HaveBroadcaster(priorPeers, haveBatchMillis);
+        if (haveBroadcaster.isBatching()) {
+            execute(haveBroadcaster);
+        }
     }
     
+    // Buffer for a received payload, pieces get a whole-piece buffer from pieceBuffers
+    protected ByteBuffer acquirePayload(byte type, int size) {
+        if (type == Message.PIECE) {
+            return pieceBuffers.acquire(size);
+        }
+        return buffers.acquire(size);
+    }
+
+    protected void releasePayload(byte type, ByteBuffer buf) {
+        if (type == Message.PIECE) {
+            pieceBuffers.release(buf);
+        } else {
+            buffers.release(buf);
+        }
+    }
+
     public int getPeerID() {
         return peerID;
     }
@@ -268,20 +548,45 @@ public class peerProcess {
                     this.port = p.port;
                     // Prepare torrent file
                     pf = new File(pf, fileName);
-                    this.torrentFile = new TorrentFile(fileSize, pieceSize, pf);
+                    this.torrentFile = new TorrentFile(fileSize, pieceSize, pf, storageMode);
+                    if (pieceCacheBytes > 0) {
+                        PieceCache cache = new PieceCache(pieceCacheBytes);
+                        torrentFile.setCache(cache);
+                        Runtime.getRuntime().addShutdownHook(new Thread(() -> writeToLog("has " + cache)));
+                    }
                     // Prepare Bitfield
                     if (p.complete) {
-                        this.bitfield = new BitfieldObj(pieceCount, true);    
+                        this.bitfield = new ConcurrentBitfield(pieceCount, true);    
                         torrentFile.setBitfield(bitfield);
                         if (!torrentFile.isComplete()) {
                             System.out.println("File for peer" + p.ID + " does not exist or is not complete.\nCould not start process.");
                             System.exit(1);
                         }
+                        if (verifyPieces) {
+                            loadPieceHashes(true);
+                        }
                         System.out.println("File confirmed for peer " + p.ID);            
                     }
                     else {
-                        this.bitfield = new BitfieldObj(pieceCount);
+                        this.bitfield = new ConcurrentBitfield(pieceCount);
                         torrentFile.setBitfield(bitfield);
+                        if (verifyPieces) {
+                            loadPieceHashes(false);
+                        }
+                        if (journalSyncMillis > 0) {
+                            // Pick up the pieces stored by an earlier run
+                            try {
+                                int restored = torrentFile.resume(journalSyncMillis);
+                                if (restored > 0) {
+                                    writeToLog(String.format("has resumed with %d pieces from its journal.", restored));
+                                }
+                                if (torrentFile.getJournal() != null) {
+                                    execute(torrentFile.getJournal());
+                                }
+                            } catch (IOException e) {
+                                System.out.println("Could not read piece journal: " + e.getMessage());
+                            }
+                        }
                     }
                     selfFound = true;
                     break;
@@ -308,6 +613,38 @@ public class peerProcess {
         }
     }
 
+    // Use <FileName>.hashes when present, a seeder checks its file against it or creates it
+    private void loadPieceHashes(boolean seed) {
+        File hashFile = new File(fileName + ".hashes");
+        try {
+            if (hashFile.exists()) {
+                PieceHashes hashes = PieceHashes.load(hashFile);
+                if (!hashes.matches(fileSize, pieceSize)) {
+                    System.out.println(hashFile + " does not match FileSize and PieceSize, pieces are not verified.");
+                    return;
+                }
+                torrentFile.setHashes(hashes);
+                if (seed) {
+                    long start = System.currentTimeMillis();
+                    int bad = torrentFile.verifyFile();
+                    if (bad > 0) {
+                        System.out.printf("File for peer %d has %d pieces that do not match %s.\nCould not start process.\n", peerID, bad, hashFile);
+                        System.exit(1);
+                    }
+                    writeToLog(String.format("has verified %d pieces against %s in %d ms.", pieceCount, hashFile, System.currentTimeMillis() - start));
+                }
+            } else if (seed) {
+                long start = System.currentTimeMillis();
+                PieceHashes hashes = torrentFile.computeHashes(pieceHashAlgorithm);
+                hashes.save(hashFile);
+                torrentFile.setHashes(hashes);
+                writeToLog(String.format("has written %s hashes of %d pieces to %s in %d ms.", pieceHashAlgorithm, pieceCount, hashFile, System.currentTimeMillis() - start));
+            }
+        } catch (IOException | UncheckedIOException | NoSuchAlgorithmException e) {
+            System.out.println("Could not use piece hashes: " + e.getMessage());
+        }
+    }
+
     protected void checkAllPeersComplete() {
         if (numFinished == maxPeers && torrentFile.isComplete()) {
             System.out.println("All peers have finished downloading, exiting...");
@@ -315,10 +652,223 @@ public class peerProcess {
         }
     }
 
+    private PiecePicker createPicker() {
+        switch (piecePicker.toLowerCase()) {
+            case "random":
+                return new RandomPicker(bitfield, requests);
+            case "sequential":
+                return new SequentialPicker(bitfield, requests);
+            case "endgame":
+                return new EndgamePicker(new RarestFirstPicker(bitfield, requests, availability), bitfield, availability, priorPeers, endgameDuplicates, blocks);
+            case "rarest":
+                return new RarestFirstPicker(bitfield, requests, availability);
+            default:
+                System.out.println("Unknown PiecePicker " + piecePicker + ", using rarest.");
+                return new RarestFirstPicker(bitfield, requests, availability);
+        }
+    }
+
+    // A piece arrived, cancel the other outstanding requests for it (endgame duplicates),
+    // peers without the Cancel extension send their copy anyway and DiskWriter drops it
+    protected void cancelDuplicates(int index, PeerInfo from) {
+        for (PeerInfo peer : new ArrayList<PeerInfo>(priorPeers)) {
+            if (peer != from && peer.inFlight.remove(index) != null && peer.cancel) {
+                peer.sendMessage(new Cancel(index));
+            }
+        }
+    }
+
+    // A block arrived, cancel the endgame duplicates of it requested from other peers
+    protected void cancelBlockDuplicates(int block, PeerInfo from) {
+        for (PeerInfo peer : new ArrayList<PeerInfo>(priorPeers)) {
+            if (peer != from && peer.blocksInFlight.remove(block) != null && peer.cancel) {
+                peer.sendMessage(new BlockCancel(blocks.pieceOf(block), blocks.beginOf(block), blocks.lengthOf(block)));
+            }
+        }
+    }
+
+    // Give up the blocks requested from a peer, e.g. when it chokes us
+    protected void releaseBlocks(PeerInfo peer) {
+        Iterator<Integer> it = peer.blocksInFlight.keySet().iterator();
+        while (it.hasNext()) {
+            int block = it.next();
+            it.remove();
+            blocks.release(block, peer.ID);
+        }
+    }
+
+    // Stop assembling a piece and forget the block requests outstanding for it
+    protected void dropBlocks(int index) {
+        blocks.discard(index);
+        int first = index * blocks.getBlocksPerPiece();
+        for (PeerInfo peer : new ArrayList<PeerInfo>(priorPeers)) {
+            peer.blocksInFlight.keySet().removeIf(block -> block >= first && block < first + blocks.getBlocksPerPiece());
+        }
+    }
+
+    // Ask every unchoking peer for more pieces, after requests were released or disk queue space freed up
+    protected void refillPipelines() {
+        for (PeerInfo peer : new ArrayList<PeerInfo>(priorPeers)) {
+            if (peer.handler != null && peer.bf != null && !peer.isChokedby && peer.amInterested) {
+                peer.handler.fillRequestPipeline();
+            }
+        }
+    }
+
+    // Called by the DiskWriter once a piece is stored and set in the bitfield
+    protected void pieceWritten(int index, PeerInfo from) {
+        int finishedPieces = bitfield.numberOfFinishedPieces();
+        writeToLog(String.format("has downloaded the piece %d from %d. Now the number of pieces it has is %d.", index, from.ID, finishedPieces));
+
+        requests.release(index);
+        if (blocks != null && blocks.isAssembling(index)) {
+            dropBlocks(index); // Arrived whole (endgame duplicate) while being assembled
+        }
+
+        // Check if still interested, peers that already hold this piece get
+        // no Have, so they rely on Not Interested to see we are done with them
+        updateInterest();
+        haveBroadcaster.pieceCompleted(index, from);
+
+        if (torrentFile.isComplete()) {
+            writeToLog("has downloaded the complete file.");
+            haveBroadcaster.flush();
+        }
+        refillPipelines();
+    }
+
+    // Called by the DiskWriter when a piece could not be stored, request it again
+    protected void pieceWriteFailed(int index, IOException e) {
+        writeToLog(String.format("could not store piece %d: %s", index, e.getMessage()));
+        releasePiece(index);
+    }
+
+    // Called by the DiskWriter when a piece does not match its hash, request it again
+    protected void pieceRejected(int index, PeerInfo from) {
+        writeToLog(String.format("received piece %d from %d, it does not match its hash.", index, from.ID));
+        from.timeouts.incrementAndGet(); // Rank it like a peer that let a request expire
+        releasePiece(index);
+    }
+
+    private void releasePiece(int index) {
+        availability.restore(index);
+        requests.release(index);
+        refillPipelines();
+    }
+
+    // Enter endgame once every missing piece is in flight: ask every unchoking
+    // peer that has one of them for it too, the first copy to arrive wins. Peers
+    // using blocks duplicate blocks as their pipelines free up (requestNextBlock)
+    protected void checkEndgame() {
+        if (endgame.get() || !picker.isEndgame() || !endgame.compareAndSet(false, true)) {
+            return;
+        }
+        writeToLog(String.format("has entered endgame with %d pieces left.", availability.missingCount()));
+
+        HashMap<PeerInfo, ArrayList<Integer>> duplicates = new HashMap<PeerInfo, ArrayList<Integer>>();
+        long now = System.currentTimeMillis();
+        for (int i : availability.missingPieces()) {
+            if (!requests.isClaimed(i)) {
+                continue;
+            }
+            int count = 0;
+            for (PeerInfo peer : new ArrayList<PeerInfo>(priorPeers)) {
+                if (peer.inFlight.containsKey(i)) {
+                    count++;
+                }
+            }
+            for (PeerInfo peer : new ArrayList<PeerInfo>(priorPeers)) {
+                if (endgameDuplicates > 0 && count >= endgameDuplicates) {
+                    break;
+                }
+                if (peer.bf == null || peer.blocks || peer.isChokedby || !peer.bf.checkBit(i) || peer.inFlight.containsKey(i)) {
+                    continue;
+                }
+                peer.inFlight.put(i, now);
+                duplicates.computeIfAbsent(peer, k -> new ArrayList<Integer>()).add(i);
+                count++;
+            }
+        }
+
+        for (PeerInfo peer : duplicates.keySet()) {
+            for (int i : duplicates.get(peer)) {
+                peer.sendMessage(new Request(i));
+            }
+        }
+    }
+
+    // Send Not Interested to peers that no longer have pieces we are missing
+    protected void updateInterest() {
+        for (PeerInfo peer : new ArrayList<PeerInfo>(priorPeers)) {
+            if (!peer.amInterested || peer.bf == null) {
+                continue;
+            }
+            if (torrentFile.isComplete() || !peer.bf.hasPiece(bitfield)) {
+                refreshInterest(peer, false);
+            }
+        }
+    }
+
+    // Send Interested or Not Interested when ours changed (or always), decided again under
+    // the peer's lock so a Have and a written piece on other threads cannot send them out of order
+    protected void refreshInterest(PeerInfo peer, boolean always) {
+        peer.interestLock.lock();
+        try {
+            boolean interested = !torrentFile.isComplete() && peer.bf.hasPiece(bitfield);
+            if (interested == peer.amInterested && !always) {
+                return;
+            }
+            peer.amInterested = interested;
+            peer.sendMessage(interested ? new Interested() : new NotInterested());
+        } finally {
+            peer.interestLock.unlock();
+        }
+    }
+
+    protected Handshake newHandshake() {
+        if (!advertiseExtensions) {
+            return new Handshake(peerID);
+        }
+        return new Handshake(peerID, (byte) (Handshake.EXT_MULTI_HAVE | Handshake.EXT_CANCEL | (useBlocks() ? Handshake.EXT_BLOCKS : 0)));
+    }
+
+    // Blocks only help when they are smaller than a piece
+    private boolean useBlocks() {
+        return blockSize > 0 && blockSize < pieceSize;
+    }
+
+    public boolean useNio() {
+        return transportMode.equalsIgnoreCase("nio");
+    }
+
+    // Run a long-lived task (peer handler, choking scheduler) according to ExecutionMode
+    protected void execute(Runnable task) {
+        if (executionMode.equalsIgnoreCase("virtual")) {
+            if (executor == null) {
+                executor = Utils.newVirtualThreadExecutor();
+            }
+            executor.execute(task);
+        } else {
+            new Thread(task).start();
+        }
+    }
+
+    // Create peer info and handler for a connection accepted by the NIO transport
+    protected NioTransport.Listener acceptConnection(SocketChannel channel) {
+        PeerInfo p = new PeerInfo();
+        p.ID = 0;
+        p.connection = channel.socket();
+        p.hostname = p.connection.getRemoteSocketAddress().toString();
+        p.port = p.connection.getPort();
+        priorPeers.add(p);
+        return new Handler(p, false);
+    }
+
     // Handler for incoming peer connections
-    private class Handler extends Thread {
+    private class Handler implements Runnable, NioTransport.Listener {
         PeerInfo p;
         boolean shook = false;
+        int receiving = -1; // Piece streaming straight into storage, see onPieceStart
 
         public Handler(Socket connection) {
             this.p = new PeerInfo();
@@ -329,33 +879,96 @@ public class peerProcess {
             p.hostname = connection.getRemoteSocketAddress().toString();
             p.port = connection.getPort();
             priorPeers.add(p);
+            p.handler = this;
         }
 
         public Handler(PeerInfo p_) {
+            this(p_, true);
+        }
+
+        public Handler(PeerInfo p_, boolean shook_) {
             this.p = p_;
-            this.shook = true;
+            this.shook = shook_;
+            p.handler = this;
         }
 
-        protected void requestRandomWantedPiece() {
-            if (p.wantedPieces.size() == 0) {
-                return;
+        // Keep up to RequestPipelineDepth requests outstanding with this peer. Called from
+        // this handler, the DiskWriter and the RequestSweeper, only one of them fills at a time
+        protected void fillRequestPipeline() {
+            if (p.refills.getAndIncrement() != 0) {
+                return; // The thread filling now goes round once more for this call
             }
-
-            while (true) {
-                Random rand = new Random();
-                int piece_index = p.wantedPieces.get(rand.nextInt(p.wantedPieces.size()));
-
-                synchronized(requestedPieces) {
-                    if (!requestedPieces.keySet().contains(piece_index)) {
-                        p.sendMessage(new Request(piece_index));
-                        requestedPieces.put(piece_index, p.ID);
+            int pending = 1;
+            do {
+                int depth = requestPipelineDepth > 0 ? requestPipelineDepth : p.adaptiveDepth();
+                if (p.blocks && requestPipelineDepth > 0) {
+                    depth *= blocks.getBlocksPerPiece(); // Same bytes in flight, adaptive depth already counts blocks
+                }
+                while (p.inFlight.size() + p.blocksInFlight.size() < depth) {
+                    if (!requestNextPiece()) {
                         break;
                     }
-                    else {
-                        continue;
-                    }
                 }
+                pending = p.refills.addAndGet(-pending);
+            } while (pending != 0);
+            checkEndgame();
+        }
+
+        // Request the piece chosen by the PiecePicker, returns false when there is
+        // none (never waits for one to become free)
+        protected boolean requestNextPiece() {
+            if (p.bf == null) {
+                return false;
+            }
+            if (p.blocks) {
+                return requestNextBlock();
+            }
+            if (!diskWriter.hasCapacity()) {
+                return false;
+            }
+
+            // Another handler may claim the picked piece first, then pick again
+            for (int attempt = 0; attempt < 4; attempt++) {
+                int piece_index = picker.pick(p);
+                if (piece_index == -1) {
+                    return false;
+                }
+                // In endgame a piece claimed for another peer is requested again on purpose
+                if (!requests.claim(piece_index, p.ID) && !(picker.isEndgame() && requests.isClaimed(piece_index))) {
+                    continue;
+                }
+                p.inFlight.put(piece_index, System.currentTimeMillis());
+                p.sendMessage(new Request(piece_index));
+                return true;
             }
+            return false;
+        }
+
+        // Request a free block of a piece in progress, or start a new piece picked by the
+        // PiecePicker, so peers share the pieces being assembled before opening more
+        protected boolean requestNextBlock() {
+            int block = blocks.claimBlock(p);
+            for (int attempt = 0; block < 0 && attempt < 4; attempt++) {
+                if (!diskWriter.hasCapacity()) {
+                    return false;
+                }
+                int piece_index = picker.pick(p);
+                if (piece_index == -1) {
+                    break;
+                }
+                if (requests.claim(piece_index, RequestTracker.BLOCKS)) {
+                    block = blocks.open(piece_index, p.ID);
+                }
+            }
+            if (block < 0 && picker.isEndgame()) {
+                block = blocks.duplicateBlock(p, endgameDuplicates); // Already requested from a slower peer
+            }
+            if (block < 0) {
+                return false;
+            }
+            p.blocksInFlight.put(block, System.currentTimeMillis());
+            p.sendMessage(new BlockRequest(blocks.pieceOf(block), blocks.beginOf(block), blocks.lengthOf(block)));
+            return true;
         }
 
         public void run() {
@@ -363,214 +976,429 @@ public class peerProcess {
                 // Receive handshake message
                 byte[] handshakeMsg = new byte[32];
                 p.in.readFully(handshakeMsg); // Blocks thread until 32 bytes are available
+                if (!onHandshake(handshakeMsg)) {
+                    return;
+                }
 
-                // Validate handshake
-                int id_in = Handshake.validateMessage(handshakeMsg);
-                if (id_in != -1) {
-                    if (!shook) {
-                        writeToLog(String.format("is connected from Peer %d", id_in));
-                        System.out.println("Peer " + id_in + " is connected.");
-                        //Send back handshake
-                        p.sendMessage(new Handshake(peerID));
-                        p.ID = id_in;
-                    } else {
-                        if (id_in != p.ID) {
-                            // Received peer ID does not match expected ID
-                            System.out.printf("ERROR: Expected peer %d but received %d during Handshake", p.ID, id_in);
-                        } else {
-                            System.out.println("Connected to peer " + p.ID + ".");
+                // Wait for other messages, one Message reused for all of them
+                Message msg = new Message();
+                while(true) {
+                    int len = p.in.readInt();
+                    byte type = p.in.readByte();
+                    ByteBuffer data = null;
+                    if (len > 1) {
+                        // Consume the payload of unknown types too, so framing is kept
+                        data = acquirePayload(type, len-1);
+                        p.in.readFully(data.array(), data.arrayOffset(), len-1);
+                    }
+                    msg.reset(type, data);
+                    try {
+                        onMessage(msg);
+                    } finally {
+                        if (data != null && msg.holds(data)) {
+                            releasePayload(type, data);
                         }
                     }
+                }
+            } catch (IOException e) {
+                onDisconnect(e);
+            } catch (RuntimeException e) {
+                try {
+                    p.connection.close();
+                } catch (IOException ignored) {
+                }
+                onFailure(e);
+            }
+        }
+
+        public void onConnect(NioTransport.Connection connection) {
+            p.nio = connection;
+            p.connection = connection.getChannel().socket();
+        }
+
+        public boolean onHandshake(byte[] handshakeMsg) {
+            // Validate handshake
+            int id_in = Handshake.validateMessage(handshakeMsg);
+            if (id_in != -1) {
+                p.multiHave = advertiseExtensions && (Handshake.getExtensions(handshakeMsg) & Handshake.EXT_MULTI_HAVE) != 0;
+                p.blocks = advertiseExtensions && useBlocks() && (Handshake.getExtensions(handshakeMsg) & Handshake.EXT_BLOCKS) != 0;
+                p.cancel = advertiseExtensions && (Handshake.getExtensions(handshakeMsg) & Handshake.EXT_CANCEL) != 0;
+                if (!shook) {
+                    writeToLog(String.format("is connected from Peer %d", id_in));
+                    System.out.println("Peer " + id_in + " is connected.");
+                    //Send back handshake
+                    p.sendMessage(newHandshake());
+                    p.ID = id_in;
                 } else {
-                    System.out.println("Invalid Handshake received...");
-                    p.finalize();
-                    return;
+                    if (id_in != p.ID) {
+                        // Received peer ID does not match expected ID
+                        System.out.printf("ERROR: Expected peer %d but received %d during Handshake", p.ID, id_in);
+                    } else {
+                        System.out.println("Connected to peer " + p.ID + ".");
+                    }
                 }
+            } else {
+                System.out.println("Invalid Handshake received...");
+                p.finalize();
+                return false;
+            }
 
-                // Exchange bitfields
-                p.sendMessage(new Bitfield(bitfield));
-                
-                // Read in length and type
-                int len = p.in.readInt();
-                byte type = p.in.readByte();
+            // Exchange bitfields
+            p.sendMessage(new Bitfield(bitfield));
+            return true;
+        }
 
-                // Check type matches bitfield
-                if (type == Message.BITFIELD) {
-                    byte[] bf_data = new byte[len-1];
-                    p.in.readFully(bf_data);
-                    p.bf = new BitfieldObj(bf_data, pieceCount);
+        // Handling this peer's input threw (e.g. a malformed message), its connection is
+        // closed: give back what it held and carry on with the other peers
+        public void onFailure(RuntimeException e) {
+            System.out.println("Error handling a message from peer " + p.ID + ", closing the connection: " + e);
+            writeToLog(String.format("dropped the connection to %d after an error: %s", p.ID, e));
+            if (receiving >= 0) {
+                diskWriter.abandon(receiving);
+                receiving = -1;
+            }
+            p.isChokedby = true; // No more requests to it
+            requests.releaseAll(p);
+            releaseBlocks(p);
+            availability.removePeer(p.bf);
+            refillPipelines();
+        }
 
-                }
+        public void onDisconnect(IOException e) {
+            if (receiving >= 0) {
+                diskWriter.abandon(receiving);
+            }
+            availability.removePeer(p.bf);
+            System.out.print("Connection Interrupted");
+            if (torrentFile.isComplete()) {
+                System.out.print(", but the file is complete");
+            }
+            System.out.println(". Exiting...");
+            System.exit(0);
+            // preferredHandler.removeNeighbor(p);
+            // priorPeers.remove(p);
+        }
 
-                if (p.bf.isComplete()) {
-                    numFinished++;
+        // Receive the piece into its place in storage when it is wanted and no other copy is
+        // queued or arriving, otherwise it comes as a PIECE message and duplicates are dropped
+        public TorrentFile.PieceRegion onPieceStart(int index, int length) {
+            if (!zeroCopyReceive || index < 0 || index >= pieceCount || bitfield.checkBit(index)
+                    || length != torrentFile.getPieceLength(index) || !diskWriter.claim(index)) {
+                return null;
+            }
+            TorrentFile.PieceRegion region = torrentFile.getReceiveRegion(index);
+            if (region == null) {
+                diskWriter.abandon(index);
+                return null;
+            }
+            receiving = index;
+            return region;
+        }
+
+        // Same as a PIECE message, except the DiskWriter only has to verify it
+        public void onPieceReceived(int index) {
+            receiving = -1;
+            p.download.add(torrentFile.getPieceLength(index));
+            p.recordPiece(index);
+            cancelDuplicates(index, p);
+            availability.complete(index);
+            diskWriter.submitStored(index, p);
+
+            if (p.amInterested && !p.isChokedby) {
+                fillRequestPipeline();
+            }
+        }
+
+        // Serve part of a piece, same paths as a whole-piece REQUEST
+        protected void sendBlock(int index, int begin, int length) {
+            // Compared by subtraction, begin + length can overflow
+            if (index < 0 || index >= pieceCount || begin < 0 || length <= 0 || length > torrentFile.getPieceLength(index) - begin) {
+                return;
+            }
+            if (zeroCopySend) {
+                TorrentFile.PieceRegion region = torrentFile.getPieceRegion(index);
+                if (region != null) {
+                    p.sendRegion(Block.getHeader(index, begin, length), region.block(begin, length));
                 }
-                
-                // Send Interested or Not Interested based on bitfield
-                if (p.bf.hasPiece(bitfield)) {
-                    p.sendMessage(new Interested());
-                } else {
-                    p.sendMessage(new NotInterested());
+            } else {
+                byte[] content = torrentFile.getBlock(index, begin, length);
+                if (content != null) {
+                    p.sendMessage(new Block(index, begin, content));
                 }
+            }
+        }
 
-                preferredHandler.addNeighbor(p);
+        // Copy a block into its piece, a completed piece is queued like a PIECE message
+        protected void onBlock(Message msg) {
+            int index = Block.index(msg);
+            int block = blocks == null ? -1 : blocks.blockOf(index, Block.begin(msg));
+            if (block < 0) {
+                return;
+            }
+            p.download.add(Block.contentLength(msg));
+            p.recordBlock(block);
+            if (endgame.get()) {
+                cancelBlockDuplicates(block, p);
+            }
 
-                // Wait for other messages
-                while(true) {
-                    len = p.in.readInt();
-                    type = p.in.readByte();
-                    Message msg;
-                    byte[] data;
-                    if (type >= 0 && type <= 7 && len > 0) {
-                        data = new byte[len-1];
-                        p.in.readFully(data);
+            TorrentFile.PieceObj piece = blocks.receive(msg);
+            if (piece != null) {
+                cancelDuplicates(index, p);
+                availability.complete(index);
+                diskWriter.submit(piece, p);
+            }
+
+            if (p.amInterested && !p.isChokedby) {
+                fillRequestPipeline();
+            }
+        }
+
+        protected void onHave(int index) {
+            writeToLog(String.format("received the 'have' message from %d for the piece %d", p.ID, index));
+
+            // Update peer bitfield
+            if (p.bf.checkBit(index)) {
+                return;
+            }
+            p.bf.setBit(index);
+            availability.addHave(index);
+
+            // Check if interested
+            if (!bitfield.checkBit(index) && !p.amInterested) {
+                refreshInterest(p, false);
+            }
+
+            if (p.bf.isComplete()) {
+                numFinished++;
+                checkAllPeersComplete();
+            }
+        }
+
+        public void onMessage(Message msg) {
+            switch (msg.getType()) {
+                case Message.CHOKE:
+                    // Handle choke msg here
+                    writeToLog("is choked by " + p.ID);
+                    p.isChokedby = true;
+
+                    // Remove all hanging requests from this peer
+                    requests.releaseAll(p);
+                    releaseBlocks(p);
+                    p.lastPieceTime = 0;
+                    break;
+                case Message.UNCHOKE:
+                    // Handle unchoke
+                    writeToLog("is unchoked by " + p.ID);
+                    p.isChokedby = false;
+
+                    // request the rarest pieces this peer can supply
+                    fillRequestPipeline();
+                    break;
+                case Message.INTERESTED:
+                    // Handle interested
+                    writeToLog("received the 'interested' message from " + p.ID);
+                    p.isInterested = true;
+                    break; 
+                case Message.NOTINTERESTED:
+                    // Handle notinterested
+                    writeToLog("received the 'not interested' message from " + p.ID);
+                    p.isInterested = false;
+
+                    boolean allFinished = true;
+                    for (PeerInfo p : priorPeers) {
+                        if (p.isInterested) {
+                            allFinished = false;
+                        }
                     }
-                    else {
-                        data = null;
+                    if (torrentFile.isComplete() && allFinished) {
+                        System.out.println("All peers and self have finished downloading, exiting...");
+                        System.exit(0);
+                    }
+                    break;
+                case Message.HAVE:
+                    // Handle have
+                    onHave(Have.index(msg));
+                    break;
+                case Message.MULTI_HAVE:
+                    // Handle batched haves
+                    for (int i = 0; i < MultiHave.count(msg); i++) {
+                        onHave(MultiHave.index(msg, i));
+                    }
+                    break;
+                case Message.BITFIELD:
+                    // Handle bitfield
+                    // Note: should not be receiving more bitfields after first
+                    boolean first = p.bf == null;
+                    availability.removePeer(p.bf);
+                    p.bf = new BitfieldObj(msg.getPayload(), pieceCount);
+                    availability.addPeer(p.bf);
+                    if (!first) {
+                        break;
                     }
-                    msg = new Message(type, data);
-                    switch (type) {
-                        case Message.CHOKE:
-                            // Handle choke msg here
-                            writeToLog("is choked by " + p.ID);
-                            p.isChokedby = true;
-
-                            // Remove all hanging requests from this peer
-                            synchronized(requestedPieces) {
-                                ArrayList<Integer> toRemove = new ArrayList<Integer>();
-                            for (Integer p_num : requestedPieces.keySet()) {
-                                if (requestedPieces.get(p_num) == p.ID) {
-                                        toRemove.add(p_num);
-                                    }
-                                }
-                                for (Integer p_num : toRemove) {
-                                    requestedPieces.remove(p_num);
-                                }
-                            }
-                            break;
-                        case Message.UNCHOKE:
-                            // Handle unchoke
-                            writeToLog("is unchoked by " + p.ID);
-                            p.isChokedby = false;
-                            p.wantedPieces.clear();
-
-                            synchronized(requestedPieces) {
-                                int i = 0;
-                                for (Boolean b : p.bf) {
-                                    synchronized(bitfield) {
-                                        if (b && !bitfield.checkBit(i) && !requestedPieces.keySet().contains(i)) {
-                                            p.wantedPieces.add(i);
-                                        }
-                                    }
-                                    i++;
-                                }
-                            }
 
-                            // request random element from wantedPieces
-                            requestRandomWantedPiece();
-                            break;
-                        case Message.INTERESTED:
-                            // Handle interested
-                            writeToLog("received the 'interested' message from " + p.ID);
-                            p.isInterested = true;
-                            break; 
-                        case Message.NOTINTERESTED:
-                            // Handle notinterested
-                            writeToLog("received the 'not interested' message from " + p.ID);
-                            p.isInterested = false;
-
-                            boolean allFinished = true;
-                            for (PeerInfo p : priorPeers) {
-                                if (p.isInterested) {
-                                    allFinished = false;
-                                }
-                            }
-                            if (torrentFile.isComplete() && allFinished) {
-                                System.out.println("All peers and self have finished downloading, exiting...");
-                                System.exit(0);
-                            }
-                            break;
-                        case Message.HAVE:
-                            // Handle have
-                            Have have_msg = new Have(msg);
-                            writeToLog(String.format("received the 'have' message from %d for the piece %d", p.ID, have_msg.getIndex()));
-                            
-                            // Update peer bitfield
-                            p.bf.setBit(have_msg.getIndex());
-
-                            // Check if interested
-                            synchronized(bitfield) {
-                                if (!bitfield.checkBit(have_msg.getIndex()) && !p.isInterested) {
-                                    p.sendMessage(new Interested());
-                                }
-                            }
+                    if (p.bf.isComplete()) {
+                        numFinished++;
+                    }
 
-                            if (p.bf.isComplete()) {
-                                numFinished++;
-                                checkAllPeersComplete();
-                            }
-                            break;
-                        case Message.BITFIELD:
-                            // Handle bitfield
-                            p.bf = new BitfieldObj(msg.getPayload(), pieceCount);
-                            // Note: should not be receiving more bitfields after first
-                            break;  
-                        case Message.REQUEST:
-                            // Handle request
-                            Request req_msg = new Request(msg);
-                            //writeToLog(String.format("has recieved a request for piece %d from %d", req_msg.getIndex(), p.ID));                          
-                            p.sendMessage(torrentFile.getPiece(req_msg.getIndex()).getPieceMsg());
-
-                            break;
-                        case Message.PIECE:
-                            // Handle piece
-                            Piece piece_msg = new Piece(msg);
-
-                            // Write to file
-                            PieceObj piece = torrentFile.new PieceObj(piece_msg);
-                            torrentFile.writePieceToFile(piece);
-                            synchronized(bitfield) {
-                                writeToLog(String.format("has downloaded the piece %d from %d. Now the number of pieces it has is %d.", piece_msg.getIndex(), p.ID, bitfield.numberOfFinishedPieces()));                            
-                            }
+                    // Send Interested or Not Interested based on bitfield
+                    refreshInterest(p, true);
 
-                            // Update Download rate
-                            p.downloadRate += 1;
-                
-                            p.wantedPieces.remove((Integer) piece_msg.getIndex());
-
-                            if (!p.bf.hasPiece(bitfield) || torrentFile.isComplete()) {
-                                // Check if still interested
-                                p.sendMessage(new NotInterested());
-                            } else if (!p.isChokedby) {
-                                // Request more pieces
-                                requestRandomWantedPiece();
-                            }
+                    preferredHandler.addNeighbor(p);
+                    break;  
+                case Message.REQUEST:
+                    // Handle request
+                    int requested = Request.index(msg);
+                    //writeToLog(String.format("has recieved a request for piece %d from %d", requested, p.ID));                          
+                    if (zeroCopySend) {
+                        TorrentFile.PieceRegion region = torrentFile.getPieceRegion(requested);
+                        if (region != null) {
+                            p.sendPiece(region);
+                        }
+                    } else {
+                        p.sendMessage(torrentFile.getPiece(requested).getPieceMsg());
+                    }
 
-                            for (PeerInfo p : priorPeers) {
-                                p.sendMessage(new Have(piece_msg.getIndex()));
-                            }
+                    break;
+                case Message.CANCEL:
+                    // Handle cancel, drop the piece if it is still waiting to be sent
+                    p.cancelPiece(Cancel.index(msg));
+                    break;
+                case Message.BLOCK_CANCEL:
+                    // Drop the block if it is still waiting to be sent
+                    p.cancelBlock(BlockCancel.index(msg), BlockCancel.begin(msg));
+                    break;
+                case Message.BLOCK_REQUEST:
+                    sendBlock(BlockRequest.index(msg), BlockRequest.begin(msg), BlockRequest.length(msg));
+                    break;
+                case Message.BLOCK:
+                    onBlock(msg);
+                    break;
+                case Message.PIECE:
+                    // Handle piece, dropping frames whose index or length cannot be the piece
+                    if (msg.getLength() < 5) {
+                        break;
+                    }
+                    int index = Piece.index(msg);
+                    if (index < 0 || index >= pieceCount || msg.getLength() - 5 != torrentFile.getPieceLength(index)) {
+                        writeToLog(String.format("dropped a malformed piece message from %d (piece %d, %d bytes).", p.ID, index, msg.getLength() - 5));
+                        break;
+                    }
 
-                            if (torrentFile.isComplete()) {
-                                writeToLog("has downloaded the complete file.");
-                            }
+                    // Update Download rate
+                    p.download.add(msg.getLength() - 5);
 
-                            break;
-                        default:
-                            // Could not identify message type
-                            System.out.println("Received unknown msg from " + p.ID);
-                            break;
+                    // The piece stays claimed until the DiskWriter stored it
+                    p.recordPiece(index);
+                    cancelDuplicates(index, p);
+
+                    // Queue the write, pieceWritten logs and announces it once stored.
+                    // The DiskWriter takes over the pooled payload and releases it.
+                    if (!bitfield.checkBit(index)) {
+                        availability.complete(index);
+                        ByteBuffer content = msg.takePayload();
+                        content.position(content.position() + 4);
+                        diskWriter.submit(torrentFile.new PieceObj(index, content), p);
                     }
+
+                    if (p.amInterested && !p.isChokedby) {
+                        // Refill the request pipeline
+                        fillRequestPipeline();
+                    }
+
+                    break;
+                default:
+                    // Could not identify message type
+                    System.out.println("Received unknown msg from " + p.ID);
+                    break;
+            }
+        }
+    }
+
+    // Connect and serve all peers from a single selector thread
+    private static void runNio(peerProcess peer) throws IOException, InterruptedException {
+        NioTransport transport = new NioTransport(peer, peer.port);
+        transport.start();
+        for (PeerInfo p : peer.priorPeers) {
+            int connectionAttempts = 0;
+            while (true) {
+                // Connect to peer
+                SocketChannel channel = null;
+                try {
+                    channel = NioTransport.connect(p.hostname, p.port);
+                } catch (IOException e) {
+                    System.out.println("Error establishing connection with peer " + p.ID);
                 }
-            } catch (IOException e) {
-                System.out.print("Connection Interrupted");
-                if (torrentFile.isComplete()) {
-                    System.out.print(", but the file is complete");
+                if (channel != null) {
+                    // Send handshake
+                    peer.writeToLog(String.format("makes a connection to Peer %d", p.ID));
+                    transport.register(channel, peer.new Handler(p));
+                    p.sendMessage(peer.newHandshake());
+                    break;
+                } else if (connectionAttempts >= 10) {
+                    System.out.println("Could not connect to peer " + p.ID);
+                    peer.writeToLog(String.format("could not connect to Peer %d after %d attempts", p.ID, connectionAttempts));
+                    break;
+                } else {
+                    // Could not connect to peer
+                    connectionAttempts++;
+                    System.out.println("("+connectionAttempts+"/10) Retrying handshake with peer " + p.ID + " in 1 second...");
+                    Thread.sleep(1000);
+                    continue;
                 }
-                System.out.println(". Exiting...");
-                System.exit(0);
-                // preferredHandler.removeNeighbor(p);
-                // priorPeers.remove(p);
-                return;
+            }
+        }
+        System.out.println("Listening for peers on port " + peer.port);
+        transport.join();
+    }
+
+    // Expires requests that outlived their deadline so other peers can be asked
+    private class RequestSweeper implements Runnable {
+
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(MIN_REQUEST_TIMEOUT / 2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                expireRequests();
+            }
+        }
+
+        private void expireRequests() {
+            boolean expired = false;
+            long now = System.currentTimeMillis();
+            for (PeerInfo peer : new ArrayList<PeerInfo>(priorPeers)) {
+                long timeout = peer.requestTimeout();
+                for (Map.Entry<Integer, Long> request : peer.inFlight.entrySet()) {
+                    if (now - request.getValue() < timeout || !peer.inFlight.remove(request.getKey(), request.getValue())) {
+                        continue;
+                    }
+                    int index = request.getKey();
+                    requests.release(index, peer.ID);
+                    peer.timeouts.incrementAndGet();
+                    expired = true;
+                    if (peer.cancel) {
+                        peer.sendMessage(new Cancel(index)); // Whoever gets it next will send it, not this peer
+                    }
+                    writeToLog(String.format("had the request for piece %d to %d time out after %d ms.", index, peer.ID, now - request.getValue()));
+                }
+                for (Map.Entry<Integer, Long> request : peer.blocksInFlight.entrySet()) {
+                    if (now - request.getValue() < timeout || !peer.blocksInFlight.remove(request.getKey(), request.getValue())) {
+                        continue;
+                    }
+                    int block = request.getKey();
+                    blocks.release(block, peer.ID);
+                    peer.timeouts.incrementAndGet();
+                    expired = true;
+                    writeToLog(String.format("had the request for block %d of piece %d to %d time out after %d ms.",
+                            blocks.beginOf(block), blocks.pieceOf(block), peer.ID, now - request.getValue()));
+                }
+            }
+
+            // Offer the released pieces to the other unchoking peers
+            if (expired) {
+                refillPipelines();
             }
         }
     }
@@ -583,7 +1411,6 @@ public class peerProcess {
 
         try{
             peerProcess peer = new peerProcess(Integer.parseInt(args[0]));
-            ServerSocket listener = new ServerSocket(peer.port);
 
             // Get number of peers
             List<String> lines = null;
@@ -601,6 +1428,13 @@ public class peerProcess {
 
             int numPeers = lines.size() - 1;
             peer.maxPeers = numPeers;
+
+            if (peer.useNio()) {
+                runNio(peer);
+                return;
+            }
+
+            ServerSocket listener = new ServerSocket(peer.port);
             for (PeerInfo p : peer.priorPeers) {
                 int connectionAttempts = 0;
                 while (true) {
@@ -609,9 +1443,9 @@ public class peerProcess {
                     if (p.connection != null) {
                         // Send handshake
                         peer.writeToLog(String.format("makes a connection to Peer %d", p.ID));
-                        Handshake hs = new Handshake(peer.peerID);
+                        Handshake hs = peer.newHandshake();
                         p.sendMessage(hs);
-                        peer.new Handler(p).start();
+                        peer.execute(peer.new Handler(p));
                         break;
                     } else if (connectionAttempts >= 10) {
                         System.out.println("Could not connect to peer " + p.ID);
@@ -629,7 +1463,7 @@ public class peerProcess {
             try {
                 System.out.println("Listening for peers on port " + peer.port);
                 while(true) {
-                    peer.new Handler(listener.accept()).start(); // Blocks until connection attempted
+                    peer.execute(peer.new Handler(listener.accept())); // Blocks until connection attempted
                 }
             } finally {
                 listener.close();